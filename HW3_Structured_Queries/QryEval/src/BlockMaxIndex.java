@@ -0,0 +1,513 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  Per-block upper bounds on BM25 term weights, for Block-Max WAND.
+ *  Run it to build the block maxima of an index for one value of the
+ *  BM25 b parameter; see the usage message.
+ *  <p>
+ *  Each inverted list is split into blocks of BLOCK_SIZE postings.
+ *  For each block the store keeps the block's last docid and its
+ *  largest BM25 length-normalized term frequency,
+ *  x = tf / ((1-b) + b * length / avgLength).  A BM25 term weight is
+ *  rsj * x / (x + k1), so one set of block maxima serves every k1,
+ *  but b is fixed when the maxima are built.  Maxima are stored as
+ *  floats, rounded up, so they remain upper bounds.
+ *  </p><p>
+ *  Each field that has positions and lengths is stored in one file of
+ *  big-endian values.
+ *  </p>
+ *  <pre>
+ *    FIELD.bmax  header:      magic, version, maxDoc, BLOCK_SIZE,
+ *                             numTerms, numBlocks (ints),
+ *                             b, avgLength (doubles)
+ *                termOffset:  numTerms+1 byte offsets into the term strings
+ *                blockStart:  numTerms+1 indexes of each term's first block
+ *                lastDocid:   numBlocks last docids
+ *                maxTf:       numBlocks largest normalized tfs (floats)
+ *                termBytes:   the UTF-8 terms, in Lucene's (byte) order
+ *  </pre>
+ *  <p>
+ *  The files are memory-mapped when the store is opened.  Opening
+ *  fails if the index, b or a field's average length has changed
+ *  since the maxima were built.
+ *  </p>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables -----------------------
+
+  static String usage =
+    "Usage:  java BlockMaxIndex -index INDEX_PATH -b B [-output PATH]\n\n" +
+    "Build the BM25 block maxima of every field that has positions for\n" +
+    "BM25:b=B.  PATH defaults to INDEX_PATH.blockmax-bB, next to the\n" +
+    "index, where QryEval looks for them when pruningAlgorithm=blockmaxwand.\n";
+
+  /**
+   *  The number of postings in a block.
+   */
+  public static final int BLOCK_SIZE = 128;
+
+  private static final int MAGIC = 0x5145424d;		// "QEBM"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 6 * 4 + 2 * 8;
+
+  /**
+   *  Block maxima that don't bound anything:  one block that covers
+   *  every docid.
+   */
+  public static final Blocks UNBOUNDED =
+    new Blocks (new int[] { Integer.MAX_VALUE },
+                new double[] { Double.POSITIVE_INFINITY });
+
+  private final double b;
+
+  /**
+   *  The mapped fields, indexed by field name.
+   */
+  private Map<String, FieldBlocks> fields =
+    new HashMap<String, FieldBlocks> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The block maxima of one inverted list.
+   */
+  public static class Blocks {
+
+    /**
+     *  The last docid of each block, in ascending order.
+     */
+    public final int[] lastDocid;
+
+    /**
+     *  The largest value in each block.
+     */
+    public final double[] max;
+
+    public Blocks (int[] lastDocid, double[] max) {
+      this.lastDocid = lastDocid;
+      this.max = max;
+    }
+
+    /**
+     *  Find the block that may contain a docid, scanning forward
+     *  from a block.
+     *  @param from The block to start from.
+     *  @param docid The docid to find.
+     *  @return The first block, starting at from, whose last docid is
+     *  at least docid, or the number of blocks if there is none.
+     */
+    public int find (int from, int docid) {
+      while ((from < this.lastDocid.length) && (this.lastDocid[from] < docid))
+        from ++;
+      return from;
+    }
+
+    /**
+     *  Get the largest value of any block.
+     *  @return The largest value, or 0 if there are no blocks.
+     */
+    public double getMax () {
+      double max = 0.0;
+
+      for (int i = 0; i < this.max.length; i++) {
+        if (this.max[i] > max)
+          max = this.max[i];
+      }
+
+      return max;
+    }
+  }
+
+  /**
+   *  The mapped file of one field.
+   */
+  private static class FieldBlocks {
+    int numTerms;
+    int numBlocks;
+    ByteBuffer data;
+    IntBuffer ints;
+    int termBytesStart;
+
+    int termOffset (int i) {
+      return this.ints.get (HEADER_BYTES / 4 + i);
+    }
+
+    int blockStart (int i) {
+      return this.ints.get (HEADER_BYTES / 4 + (this.numTerms + 1) + i);
+    }
+
+    int lastDocid (int i) {
+      return this.ints.get (HEADER_BYTES / 4 + 2 * (this.numTerms + 1) + i);
+    }
+
+    float maxTf (int i) {
+      return Float.intBitsToFloat
+        (this.ints.get (HEADER_BYTES / 4 + 2 * (this.numTerms + 1) +
+                        this.numBlocks + i));
+    }
+
+    /**
+     *  Compare the i'th term with a key, in unsigned byte order.
+     */
+    int compareTerm (int i, byte[] key) {
+      int start = this.termBytesStart + this.termOffset (i);
+      int end = this.termBytesStart + this.termOffset (i + 1);
+      int len = Math.min (end - start, key.length);
+
+      for (int k = 0; k < len; k++) {
+        int diff = (this.data.get (start + k) & 0xff) - (key[k] & 0xff);
+
+        if (diff != 0)
+          return diff;
+      }
+
+      return (end - start) - key.length;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Use {@link #open} to open a store.
+   */
+  private BlockMaxIndex (double b) {
+    this.b = b;
+  }
+
+  /**
+   *  Get the default location of the block maxima of an index.
+   *  @param indexPath The index directory.
+   *  @param b The BM25 b parameter.
+   *  @return A directory next to the index.
+   */
+  public static String getDefaultPath (String indexPath, double b) {
+    return new File (indexPath).getAbsolutePath () + ".blockmax-b" + b;
+  }
+
+  /**
+   *  Get the average length of a field, as QrySopScore computes it.
+   */
+  private static double getAvgLength (String field) throws IOException {
+    return Idx.getSumOfFieldLengths (field) / (1.0 + Idx.getDocCount (field));
+  }
+
+  /**
+   *  Compute the block maxima of an inverted list.
+   *  @param list The inverted list.
+   *  @param lengths The field lengths, indexed by internal docid.
+   *  @param b The BM25 b parameter.
+   *  @param avgLength The average field length.
+   *  @return The largest normalized tf of each block.
+   */
+  public static Blocks compute (InvList list, int[] lengths,
+                                double b, double avgLength) {
+
+    int numBlocks = (list.df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int[] lastDocid = new int[numBlocks];
+    double[] max = new double[numBlocks];
+
+    for (int n = 0; n < list.df; n++) {
+      int docid = list.getDocid (n);
+      double x = list.getTf (n) / ((1.0 - b) + b * lengths[docid] / avgLength);
+      int block = n / BLOCK_SIZE;
+
+      lastDocid[block] = docid;
+
+      if (x > max[block])
+        max[block] = x;
+    }
+
+    return new Blocks (lastDocid, max);
+  }
+
+  /**
+   *  Map the block maxima in a directory.
+   *  @param path The directory.
+   *  @param reader The index that the block maxima must match.
+   *  @param b The BM25 b parameter that the block maxima must match.
+   *  @return The store.
+   *  @throws IllegalArgumentException The block maxima are invalid or stale.
+   *  @throws IOException Error accessing the block maxima.
+   */
+  public static BlockMaxIndex open (String path, IndexReader reader, double b)
+    throws IllegalArgumentException, IOException {
+
+    BlockMaxIndex store = new BlockMaxIndex (b);
+    File[] files = new File (path).listFiles ();
+
+    if (files == null) {
+      throw new IllegalArgumentException ("Can't read block maxima " + path);
+    }
+
+    for (File f : files) {
+      String name = f.getName ();
+
+      if (! name.endsWith (".bmax"))
+        continue;
+
+      String field = name.substring (0, name.length () - ".bmax".length ());
+      FieldBlocks fb = new FieldBlocks ();
+      fb.data = map (f);
+      fb.ints = fb.data.asIntBuffer ();
+
+      if ((fb.ints.get (0) != MAGIC) || (fb.ints.get (1) != VERSION) ||
+          (fb.ints.get (3) != BLOCK_SIZE)) {
+        throw new IllegalArgumentException ("Not a block maxima file: " + f);
+      }
+
+      if ((fb.ints.get (2) != reader.maxDoc ()) ||
+          (fb.data.getDouble (24) != b) ||
+          (fb.data.getDouble (32) != getAvgLength (field))) {
+        throw new IllegalArgumentException
+          ("The block maxima don't match the index and BM25:b: " + f);
+      }
+
+      fb.numTerms = fb.ints.get (4);
+      fb.numBlocks = fb.ints.get (5);
+      fb.termBytesStart =
+        HEADER_BYTES + 4 * (2 * (fb.numTerms + 1) + 2 * fb.numBlocks);
+
+      store.fields.put (field, fb);
+    }
+
+    return store;
+  }
+
+  /**
+   *  Map a file into memory, read-only.
+   */
+  private static MappedByteBuffer map (File f) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile (f, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      return channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    } finally {
+      raf.close ();			// The mapping stays valid.
+    }
+  }
+
+  /**
+   *  Get the BM25 b parameter of the block maxima.
+   *  @return The b parameter.
+   */
+  public double getB () {
+    return this.b;
+  }
+
+  /**
+   *  Get the block maxima of a term.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The largest normalized tf of each block, or null if the
+   *  store doesn't have the field.
+   *  @throws IOException Error decoding the term.
+   */
+  public Blocks getBlocks (String termString, String fieldString)
+    throws IOException {
+
+    FieldBlocks fb = this.fields.get (fieldString);
+
+    if (fb == null)
+      return null;
+
+    byte[] key = termString.getBytes ("UTF-8");
+    int lo = 0;
+    int hi = fb.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = fb.compareTerm (mid, key);
+
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        int start = fb.blockStart (mid);
+        int numBlocks = fb.blockStart (mid + 1) - start;
+        int[] lastDocid = new int[numBlocks];
+        double[] max = new double[numBlocks];
+
+        for (int i = 0; i < numBlocks; i++) {
+          lastDocid[i] = fb.lastDocid (start + i);
+          max[i] = fb.maxTf (start + i);
+        }
+
+        return new Blocks (lastDocid, max);
+      }
+    }
+
+    return new Blocks (new int[0], new double[0]);
+  }
+
+  /**
+   *  Build the block maxima of every field that has positions and
+   *  lengths.  Idx must be initialized.
+   *  @param path The directory to write the block maxima to.
+   *  @param b The BM25 b parameter.
+   *  @throws IOException Error accessing the index or the block maxima.
+   */
+  public static void export (String path, double b) throws IOException {
+
+    File dir = new File (path);
+
+    if (! dir.isDirectory () && ! dir.mkdirs ()) {
+      throw new IOException ("Can't create " + path);
+    }
+
+    Fields fields = MultiFields.getFields (Idx.INDEXREADER);
+    Bits liveDocs = MultiFields.getLiveDocs (Idx.INDEXREADER);
+
+    for (String field : fields) {
+      Terms terms = fields.terms (field);
+
+      if ((terms == null) || ! terms.hasPositions ())
+        continue;
+
+      int[] lengths;
+
+      try {
+        lengths = Idx.getFieldLengths (Idx.getFieldId (field));
+      } catch (IllegalArgumentException ex) {
+        continue;			// No lengths, so no BM25 scores.
+      }
+
+      System.out.println ("Building " + field);
+      exportField (field, terms, liveDocs, lengths, b, dir);
+    }
+  }
+
+  /**
+   *  Build the block maxima of one field.
+   */
+  private static void exportField (String field, Terms terms, Bits liveDocs,
+                                   int[] lengths, double b, File dir)
+    throws IOException {
+
+    double avgLength = getAvgLength (field);
+
+    ByteArrayOutputStream termBytes = new ByteArrayOutputStream ();
+    int[] termOffset = new int[1024];
+    int[] blockStart = new int[1024];
+    int[] lastDocid = new int[1024];
+    float[] maxTf = new float[1024];
+    int numTerms = 0;
+    int numBlocks = 0;
+
+    TermsEnum ithTerm = terms.iterator (null);
+    DocsEnum postings = null;
+    BytesRef term;
+
+    while ((term = ithTerm.next ()) != null) {
+
+      if (numTerms + 1 >= termOffset.length) {
+        termOffset = Arrays.copyOf (termOffset, termOffset.length * 2);
+        blockStart = Arrays.copyOf (blockStart, blockStart.length * 2);
+      }
+
+      termOffset[numTerms] = termBytes.size ();
+      termBytes.write (term.bytes, term.offset, term.length);
+      blockStart[numTerms] = numBlocks;
+
+      postings = ithTerm.docs (liveDocs, postings, DocsEnum.FLAG_FREQS);
+      int n = 0;
+      int docid;
+
+      while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+
+        if (n % BLOCK_SIZE == 0) {
+          if (numBlocks >= lastDocid.length) {
+            lastDocid = Arrays.copyOf (lastDocid, lastDocid.length * 2);
+            maxTf = Arrays.copyOf (maxTf, maxTf.length * 2);
+          }
+          maxTf[numBlocks] = 0;
+          numBlocks ++;
+        }
+
+        double x = postings.freq () / ((1.0 - b) + b * lengths[docid] / avgLength);
+        float f = (float) x;
+
+        if (f < x)
+          f = Math.nextUp (f);		// Round up, to keep a bound.
+
+        lastDocid[numBlocks - 1] = docid;
+        maxTf[numBlocks - 1] = Math.max (maxTf[numBlocks - 1], f);
+        n ++;
+      }
+
+      numTerms ++;
+    }
+
+    termOffset[numTerms] = termBytes.size ();
+    blockStart[numTerms] = numBlocks;
+
+    DataOutputStream out = new DataOutputStream
+      (new BufferedOutputStream
+       (new FileOutputStream (new File (dir, field + ".bmax")), 1 << 16));
+
+    out.writeInt (MAGIC);
+    out.writeInt (VERSION);
+    out.writeInt (Idx.INDEXREADER.maxDoc ());
+    out.writeInt (BLOCK_SIZE);
+    out.writeInt (numTerms);
+    out.writeInt (numBlocks);
+    out.writeDouble (b);
+    out.writeDouble (avgLength);
+
+    for (int i = 0; i <= numTerms; i++)
+      out.writeInt (termOffset[i]);
+    for (int i = 0; i <= numTerms; i++)
+      out.writeInt (blockStart[i]);
+    for (int i = 0; i < numBlocks; i++)
+      out.writeInt (lastDocid[i]);
+    for (int i = 0; i < numBlocks; i++)
+      out.writeFloat (maxTf[i]);
+
+    termBytes.writeTo (out);
+    out.close ();
+
+    System.out.println ("    " + numTerms + " terms, " + numBlocks + " blocks");
+  }
+
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+    double b = Double.NaN;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i + 1];
+      } else if ("-b".equals (args[i])) {
+        b = Double.parseDouble (args[i + 1]);
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i + 1];
+      }
+    }
+
+    if ((indexPath == null) || ! (b >= 0.0 && b <= 1.0)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    if (outputPath == null) {
+      outputPath = getDefaultPath (indexPath, b);
+    }
+
+    Idx.initialize (indexPath);
+    export (outputPath, b);
+    Idx.INDEXREADER.close ();
+  }
+}
@@ -0,0 +1,162 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  Block-Max WAND evaluation of a BM25 #SUM of #SCORE operators into
+ *  a bounded ScoreList.  The results are the same as exhaustive
+ *  evaluation.
+ *  <p>
+ *  The pivot is chosen as in {@link Wand}, from each argument's upper
+ *  bound on its whole inverted list, the largest of its block bounds.
+ *  Then the arguments up to the pivot, and any others at the pivot's
+ *  docid, are checked against the bounds of their blocks that contain
+ *  the pivot's docid (see {@link BlockMaxIndex}).  If those bounds can't reach the threshold,
+ *  no document before the end of the shortest of those blocks can,
+ *  so the arguments skip past it.  Otherwise evaluation continues as
+ *  in WAND.
+ *  </p><p>
+ *  Block bounds come from the stored block maxima if Idx has them,
+ *  otherwise they are computed from each inverted list when the query
+ *  is evaluated.
+ *  </p>
+ */
+public class BlockMaxWand {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Whether a query can be evaluated by Block-Max WAND.  It supports
+   *  the same queries as MaxScore.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated by Block-Max WAND.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+    return MaxScore.canEvaluate (q, r);
+  }
+
+  /**
+   *  Evaluate an initialized query.
+   *  @param q The query.  See canEvaluate.
+   *  @param r The retrieval model.
+   *  @param result A bounded ScoreList that receives the results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, ScoreList result)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] args = new QrySopScore[n];
+    double[] bounds = new double[n];
+    BlockMaxIndex.Blocks[] blocks = new BlockMaxIndex.Blocks[n];
+    int[] block = new int[n];
+    int[] docids = new int[n];
+    int[] cursors = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      blocks[i] = args[i].getBlockUpperBoundsBM25 (r);
+
+      for (int j = 0; j < blocks[i].max.length; j++)
+        bounds[i] = Math.max (bounds[i], blocks[i].max[j]);
+
+      docids[i] = Wand.currentDocid (args[i], r);
+      cursors[i] = i;
+    }
+
+    int live = Wand.sortCursors (cursors, docids, n);
+    double threshold = Double.NEGATIVE_INFINITY;
+
+    while (live > 0) {
+
+      //  Find the pivot.
+
+      double bound = 0.0;
+      int pivot = -1;
+
+      for (int p = 0; p < live; p++) {
+        bound += bounds[cursors[p]];
+
+        if (bound * (1.0 + ScoreList.BOUND_SLACK) >= threshold) {
+          pivot = p;
+          break;
+        }
+      }
+
+      if (pivot < 0)		// No document can reach the threshold.
+        break;
+
+      int pivotDocid = docids[cursors[pivot]];
+
+      while ((pivot + 1 < live) && (docids[cursors[pivot + 1]] == pivotDocid))
+        pivot ++;
+
+      //  Sum the bounds of the blocks that contain the pivot's docid.
+      //  Documents from the pivot's docid to skipTo - 1 are covered
+      //  by those blocks, and no other argument matches them.
+
+      double blockBound = 0.0;
+      int skipTo = (pivot + 1 < live) ? docids[cursors[pivot + 1]] : Integer.MAX_VALUE;
+
+      for (int p = 0; p <= pivot; p++) {
+        int i = cursors[p];
+        block[i] = blocks[i].find (block[i], pivotDocid);
+
+        if (block[i] < blocks[i].lastDocid.length) {
+          int last = blocks[i].lastDocid[block[i]];
+
+          blockBound += blocks[i].max[block[i]];
+
+          if (last < skipTo - 1)
+            skipTo = last + 1;
+        }
+      }
+
+      if (blockBound * (1.0 + ScoreList.BOUND_SLACK) < threshold) {
+
+        //  No document before skipTo can reach the threshold.
+
+        for (int p = 0; p <= pivot; p++) {
+          int i = cursors[p];
+          args[i].docIteratorAdvanceTo (skipTo);
+          docids[i] = Wand.currentDocid (args[i], r);
+        }
+      } else if (docids[cursors[0]] == pivotDocid) {
+
+        //  Score the document.  The arguments that match it are the
+        //  ones that point to it.
+
+        double score = 0.0;
+
+        for (int i = 0; i < n; i++) {
+          if (docids[i] == pivotDocid)
+            score += args[i].getScore (r);
+        }
+
+        result.add (pivotDocid, score);
+        threshold = result.getThreshold ();
+
+        for (int p = 0; p <= pivot; p++) {
+          int i = cursors[p];
+          args[i].docIteratorAdvancePast (pivotDocid);
+          docids[i] = Wand.currentDocid (args[i], r);
+        }
+      } else {
+
+        //  Documents before the pivot's docid can't reach the
+        //  threshold, so skip them.
+
+        for (int p = 0; (p <= pivot) && (docids[cursors[p]] < pivotDocid); p++) {
+          int i = cursors[p];
+          args[i].docIteratorAdvanceTo (pivotDocid);
+          docids[i] = Wand.currentDocid (args[i], r);
+        }
+      }
+
+      live = Wand.sortCursors (cursors, docids, live);
+    }
+  }
+}
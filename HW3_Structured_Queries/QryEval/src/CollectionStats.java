@@ -0,0 +1,176 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  Corpus, field and term statistics, read from the index once and
+ *  then served from memory.
+ *  <p>
+ *  Field statistics are loaded for every indexed field when the
+ *  statistics are created.  Term statistics come from the terms
+ *  dictionary (TermsEnum.docFreq and totalTermFreq), so no postings
+ *  are decoded, and they are cached by (term, field).  Like Lucene's
+ *  own statistics they count deleted documents.  The caches are
+ *  concurrent, so the statistics may be shared by several threads.
+ *  The number of distinct query terms is small, so the term cache is
+ *  not bounded.
+ *  </p>
+ */
+public class CollectionStats {
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The statistics of one field.
+   */
+  private static class FieldStats {
+    final long sumOfFieldLengths;
+    final int docCount;
+
+    FieldStats (long sumOfFieldLengths, int docCount) {
+      this.sumOfFieldLengths = sumOfFieldLengths;
+      this.docCount = docCount;
+    }
+  }
+
+  /**
+   *  The statistics of a term in a field.
+   */
+  public static class TermStats {
+
+    /**
+     *  Document frequency:  The number of documents that have the term
+     *  in the field.
+     */
+    public final int df;
+
+    /**
+     *  Collection term frequency:  The number of times that the term
+     *  occurs in the field, across all documents.
+     */
+    public final long ctf;
+
+    TermStats (int df, long ctf) {
+      this.df = df;
+      this.ctf = ctf;
+    }
+  }
+
+  //  --------------- Constants and variables -----------------------
+
+  private static final TermStats NO_TERM = new TermStats (0, 0);
+
+  private final IndexReader reader;
+  private final long numDocs;
+
+  private final ConcurrentHashMap<String, FieldStats> fieldStats =
+    new ConcurrentHashMap<String, FieldStats> ();
+
+  private final ConcurrentHashMap<String, TermStats> termStats =
+    new ConcurrentHashMap<String, TermStats> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Load the corpus statistics and the statistics of every indexed
+   *  field.
+   *  @param reader The index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public CollectionStats (IndexReader reader) throws IOException {
+
+    this.reader = reader;
+    this.numDocs = reader.numDocs ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      this.getFieldStats (field);
+    }
+  }
+
+  /**
+   *  Get the statistics of a field, reading them from the index if
+   *  they aren't cached yet.
+   */
+  private FieldStats getFieldStats (String fieldName) throws IOException {
+
+    FieldStats stats = this.fieldStats.get (fieldName);
+
+    if (stats == null) {
+      stats = new FieldStats (this.reader.getSumTotalTermFreq (fieldName),
+                              this.reader.getDocCount (fieldName));
+      this.fieldStats.put (fieldName, stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocCount (String fieldName) throws IOException {
+    return this.getFieldStats (fieldName).docCount;
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getSumOfFieldLengths (String fieldName) throws IOException {
+    return this.getFieldStats (fieldName).sumOfFieldLengths;
+  }
+
+  /**
+   *  Get the df and ctf of a term from the terms dictionary.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The term statistics.  Both are 0 if the term doesn't occur.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public TermStats getTermStats (String termString, String fieldString)
+    throws IOException {
+
+    //  Field names don't contain ':', so the key is unambiguous.
+
+    String key = fieldString + ":" + termString;
+    TermStats stats = this.termStats.get (key);
+
+    if (stats == null) {
+      stats = NO_TERM;
+
+      Terms terms = MultiFields.getTerms (this.reader, fieldString);
+
+      if (terms != null) {
+        TermsEnum ithTerm = terms.iterator (null);
+
+        if (ithTerm.seekExact (new BytesRef (termString), false)) {
+          stats = new TermStats (ithTerm.docFreq (),
+                                 Math.max (0, ithTerm.totalTermFreq ()));
+        }
+      }
+
+      this.termStats.put (key, stats);
+    }
+
+    return stats;
+  }
+}
@@ -3,7 +3,9 @@
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
@@ -12,12 +14,33 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * The lengths are copied out of Lucene's norms into one flat int[]
+ * column per field when the store is opened.  Fields are numbered by
+ * small integer ids, so query operators can resolve a field name once
+ * and then look up each document's length with a single array load.
+ * </p>
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
   private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
 
+  /**
+   * Field ids, indexed by field name.
+   */
+  private Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+
+  /**
+   * The length columns, indexed by field id and then by docid.
+   */
+  private int[][] lengths;
+
+  /**
+   * The smallest length of each field, indexed by field id.
+   */
+  private int[] minLengths;
+
   /**
    * @param reader IndexReader object created in {@link Idx}.
    */
@@ -26,6 +49,40 @@ public class DocLengthStore  {
     for (String field : MultiFields.getIndexedFields(reader)) {
       this.values.put(field, MultiDocValues.getNormValues(reader, field));      
     }
+
+    //  Only fields that have norms have lengths.
+
+    List<int[]> columns = new ArrayList<int[]>();
+    int maxDoc = reader.maxDoc();
+
+    for (Map.Entry<String, NumericDocValues> e : this.values.entrySet()) {
+      NumericDocValues norms = e.getValue();
+
+      if (norms == null)
+        continue;
+
+      int[] column = new int[maxDoc];
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        column[docid] = (int) norms.get(docid);
+      }
+
+      this.fieldIds.put(e.getKey(), columns.size());
+      columns.add(column);
+    }
+
+    this.lengths = columns.toArray(new int[columns.size()][]);
+    this.minLengths = new int[this.lengths.length];
+
+    for (int i = 0; i < this.lengths.length; i++) {
+      int min = Integer.MAX_VALUE;
+
+      for (int length : this.lengths[i]) {
+        min = Math.min(min, length);
+      }
+
+      this.minLengths[i] = (maxDoc == 0) ? 0 : min;
+    }
   }
 
   /**
@@ -38,4 +95,45 @@ public class DocLengthStore  {
   public long getDocLength(String fieldname, int docid) throws IOException {
     return values.get(fieldname).get(docid);
   }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param fieldId The id of the field, from {@link #getFieldId}.
+   * @param docid The internal docid in the lucene index.
+   */
+  public int getDocLength(int fieldId, int docid) {
+    return this.lengths[fieldId][docid];
+  }
+
+  /**
+   * Returns the id of a field that has document lengths.
+   *
+   * @param fieldname Name of the field.
+   * @return The field id, or -1 if the field has no document lengths.
+   */
+  public int getFieldId(String fieldname) {
+    Integer id = this.fieldIds.get(fieldname);
+    return (id == null) ? -1 : id;
+  }
+
+  /**
+   * Returns the lengths of a field in every document, indexed by
+   * internal docid.  The array must not be modified.
+   *
+   * @param fieldId The id of the field, from {@link #getFieldId}.
+   */
+  public int[] getDocLengths(int fieldId) {
+    return this.lengths[fieldId];
+  }
+
+  /**
+   * Returns the smallest length of a field in any document.  A
+   * document that doesn't have the field has length 0.
+   *
+   * @param fieldId The id of the field, from {@link #getFieldId}.
+   */
+  public int getMinDocLength(int fieldId) {
+    return this.minLengths[fieldId];
+  }
 }
@@ -0,0 +1,203 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DocNormStore caches the per-document length normalizers of the
+ * ranked retrieval models, one table per field, model and set of
+ * model parameters.
+ * <p>
+ * A BM25 table has k1 * (1 - b + b * length / avgLength) for each
+ * document.  Indri has two tables:  length + mu, which is the
+ * denominator of the smoothed score, and mu / (length + mu), which is
+ * the factor of the default score.  A #SCORE operator looks its
+ * tables up when it is initialized, so scoring a document reads its
+ * normalizer instead of computing it from the document's length.
+ * </p><p>
+ * The tables are doubles.  Float normalizers would change the scores
+ * of matching documents.  The BM25 normalizers and the Indri
+ * denominators are computed with the same operations that
+ * QrySopScore used, so those scores are the same.  The default
+ * factor is rounded once more than the default score used to be, so
+ * a default score may differ in its last bit.
+ * </p><p>
+ * Tables are shared by every query and thread.  A table is built the
+ * first time that it is requested, and it is kept for the life of
+ * the index, so alternating between parameter sets doesn't rebuild
+ * tables.  Tables are published through a ConcurrentHashMap and
+ * never modified after they are built, so looking one up doesn't
+ * lock.  Two threads may build the same table at once; one copy is
+ * kept.
+ * </p>
+ */
+public class DocNormStore {
+
+  /**
+   * The key of a table:  the model, the field and the parameters
+   * that the table was built with.
+   */
+  private static final class Key {
+    final String model;
+    final int fieldId;
+    final double[] params;
+
+    Key(String model, int fieldId, double... params) {
+      this.model = model;
+      this.fieldId = fieldId;
+      this.params = params;
+    }
+
+    public boolean equals(Object o) {
+      if (! (o instanceof Key)) {
+        return false;
+      }
+
+      Key k = (Key) o;
+      return this.model.equals(k.model) &&
+        (this.fieldId == k.fieldId) &&
+        Arrays.equals(this.params, k.params);
+    }
+
+    public int hashCode() {
+      return (this.model.hashCode() * 31 + this.fieldId) * 31 +
+        Arrays.hashCode(this.params);
+    }
+  }
+
+  private DocLengthStore lengthStore;
+
+  /**
+   * The tables.
+   */
+  private ConcurrentHashMap<Key, double[]> tables =
+    new ConcurrentHashMap<Key, double[]>();
+
+  /**
+   * @param lengthStore The DocLengthStore created in {@link Idx}.
+   */
+  public DocNormStore(DocLengthStore lengthStore) {
+    this.lengthStore = lengthStore;
+  }
+
+  /**
+   * Returns the BM25 length normalizers of a field, building them if
+   * they aren't cached for these parameters.  The array must not be
+   * modified.
+   *
+   * @param fieldId The id of the field, from {@link DocLengthStore#getFieldId}.
+   * @param k1 The BM25 k1 parameter.
+   * @param b The BM25 b parameter.
+   * @param avgLength The average length of the field.
+   */
+  public double[] getBM25Norms(int fieldId, double k1, double b,
+                               double avgLength) {
+    Key key = new Key("bm25", fieldId, k1, b, avgLength);
+    double[] norms = this.tables.get(key);
+
+    if (norms == null) {
+      int[] lengths = this.lengthStore.getDocLengths(fieldId);
+      norms = this.publish(key, bm25Norms(lengths, k1, b, avgLength));
+    }
+
+    return norms;
+  }
+
+  /**
+   * Returns the Indri denominators of a field, building them if they
+   * aren't cached for this mu.  The array must not be modified.
+   *
+   * @param fieldId The id of the field, from {@link DocLengthStore#getFieldId}.
+   * @param mu The Indri mu parameter.
+   */
+  public double[] getIndriNorms(int fieldId, double mu) {
+    Key key = new Key("indri", fieldId, mu);
+    double[] norms = this.tables.get(key);
+
+    if (norms == null) {
+      int[] lengths = this.lengthStore.getDocLengths(fieldId);
+      norms = this.publish(key, indriNorms(lengths, mu));
+    }
+
+    return norms;
+  }
+
+  /**
+   * Returns the Indri default score factors of a field, building
+   * them if they aren't cached for this mu.  The array must not be
+   * modified.
+   *
+   * @param fieldId The id of the field, from {@link DocLengthStore#getFieldId}.
+   * @param mu The Indri mu parameter.
+   */
+  public double[] getIndriDefaultFactors(int fieldId, double mu) {
+    Key key = new Key("indri-default", fieldId, mu);
+    double[] factors = this.tables.get(key);
+
+    if (factors == null) {
+      factors = this.publish(key, indriDefaultFactors(getIndriNorms(fieldId, mu), mu));
+    }
+
+    return factors;
+  }
+
+  /**
+   * Caches a table unless another thread cached it first.
+   *
+   * @return The cached table.
+   */
+  private double[] publish(Key key, double[] table) {
+    double[] cached = this.tables.putIfAbsent(key, table);
+    return (cached != null) ? cached : table;
+  }
+
+  /**
+   * Computes the BM25 length normalizers of a set of documents.
+   *
+   * @param lengths The document lengths, indexed by docid.
+   */
+  public static double[] bm25Norms(int[] lengths, double k1, double b,
+                                   double avgLength) {
+    double[] norms = new double[lengths.length];
+
+    for (int docid = 0; docid < lengths.length; docid++) {
+      double doc_len = lengths[docid];
+      norms[docid] = k1 * (1.0 - b + b * doc_len / avgLength);
+    }
+
+    return norms;
+  }
+
+  /**
+   * Computes the Indri denominators of a set of documents.
+   *
+   * @param lengths The document lengths, indexed by docid.
+   */
+  public static double[] indriNorms(int[] lengths, double mu) {
+    double[] norms = new double[lengths.length];
+
+    for (int docid = 0; docid < lengths.length; docid++) {
+      norms[docid] = lengths[docid] + mu;
+    }
+
+    return norms;
+  }
+
+  /**
+   * Computes the Indri default score factors, mu / (length + mu), of
+   * a set of documents.
+   *
+   * @param norms The Indri denominators, from {@link #indriNorms}.
+   */
+  public static double[] indriDefaultFactors(double[] norms, double mu) {
+    double[] factors = new double[norms.length];
+
+    for (int docid = 0; docid < norms.length; docid++) {
+      factors[docid] = mu / norms[docid];
+    }
+
+    return factors;
+  }
+}
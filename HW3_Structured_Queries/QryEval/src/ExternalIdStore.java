@@ -0,0 +1,357 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A compact, in-memory copy of every document's external id, so that
+ *  external ids can be found without loading stored documents.
+ *  <p>
+ *  The external ids are kept in sorted order, numbered by ordinal, and
+ *  front coded:  in each block of 16 ids, the first id is stored in
+ *  full and every other id is stored as the length of the prefix that
+ *  it shares with the previous id, followed by the rest of its bytes.
+ *  A column maps each internal docid to the ordinal of its external
+ *  id, so comparing the ordinals of two documents compares their
+ *  external ids.  Another column maps each ordinal back to a docid,
+ *  so an external id is found by a binary search over the first id
+ *  of each block and a scan of one block.
+ *  </p><p>
+ *  The store is built from the terms dictionary of the external id
+ *  field, which lists every external id once, in sorted order, with
+ *  the document that has it.  Stored documents are not read.
+ *  </p>
+ */
+public class ExternalIdStore {
+
+  //  --------------- Constants and variables -----------------------
+
+  private static final int BLOCK_SHIFT = 4;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  /**
+   *  The ordinal of each document's external id, indexed by internal
+   *  docid, or -1 if the document has no external id.
+   */
+  private final int[] docOrdinal;
+
+  /**
+   *  The internal docid of each external id, indexed by ordinal.  If
+   *  several documents have the same external id, it is the lowest
+   *  of their docids.
+   */
+  private final int[] ordinalDocid;
+
+  /**
+   *  The index in data of the start of each block.
+   */
+  private final int[] blockOffsets;
+
+  /**
+   *  The front-coded external ids.
+   */
+  private final byte[] data;
+
+  private final int numIds;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Build the store from the terms dictionary of a field.
+   *  @param reader The index.
+   *  @param fieldName The field that holds external ids.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ExternalIdStore (IndexReader reader, String fieldName)
+    throws IOException {
+
+    this.docOrdinal = new int[reader.maxDoc ()];
+    Arrays.fill (this.docOrdinal, -1);
+
+    Terms terms = MultiFields.getTerms (reader, fieldName);
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    ByteArrayOutputStream out = new ByteArrayOutputStream ();
+    int[] offsets = new int[64];
+    int[] docids = new int[1024];
+    int n = 0;
+
+    if (terms != null) {
+      TermsEnum ithTerm = terms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef previous = new BytesRef ();
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+
+        //  Ids of deleted documents are skipped.
+
+        docs = ithTerm.docs (liveDocs, docs, DocsEnum.FLAG_NONE);
+        int docid = docs.nextDoc ();
+
+        if (docid == DocIdSetIterator.NO_MORE_DOCS)
+          continue;
+
+        if (n >= docids.length) {
+          docids = Arrays.copyOf (docids, docids.length * 2);
+        }
+        docids[n] = docid;
+
+        do {
+          this.docOrdinal[docid] = n;
+        } while ((docid = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS);
+
+        //  Append the id to the current block.
+
+        int prefix = 0;
+
+        if ((n & BLOCK_MASK) == 0) {
+          if ((n >>> BLOCK_SHIFT) >= offsets.length) {
+            offsets = Arrays.copyOf (offsets, offsets.length * 2);
+          }
+          offsets[n >>> BLOCK_SHIFT] = out.size ();
+        } else {
+          int max = Math.min (previous.length, term.length);
+
+          while ((prefix < max) &&
+                 (previous.bytes[previous.offset + prefix] ==
+                  term.bytes[term.offset + prefix])) {
+            prefix ++;
+          }
+
+          writeVInt (out, prefix);
+        }
+
+        writeVInt (out, term.length - prefix);
+        out.write (term.bytes, term.offset + prefix, term.length - prefix);
+
+        previous.copyBytes (term);
+        n ++;
+      }
+    }
+
+    this.numIds = n;
+    this.ordinalDocid = Arrays.copyOf (docids, n);
+    this.blockOffsets =
+      Arrays.copyOf (offsets, (n + BLOCK_MASK) >>> BLOCK_SHIFT);
+    this.data = out.toByteArray ();
+  }
+
+  private static void writeVInt (ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write (value);
+  }
+
+  /**
+   *  Get the ordinal of a document's external id.  Ordinals are in
+   *  the same order as the external ids.
+   *  @param docid An internal docid.
+   *  @return The ordinal, or -1 if the document has no external id.
+   */
+  public int getOrdinal (int docid) {
+    return this.docOrdinal[docid];
+  }
+
+  /**
+   *  Get the external id that has the specified ordinal.
+   *  @param ordinal The ordinal, 0 &lt;= ordinal &lt; size().
+   *  @return The external id.
+   */
+  public String getExternalId (int ordinal) {
+
+    int p = this.blockOffsets[ordinal >>> BLOCK_SHIFT];
+    byte[] id = new byte[32];
+    int length = 0;
+
+    //  Decode the block up to the ordinal.
+
+    for (int i = 0; i <= (ordinal & BLOCK_MASK); i++) {
+      int prefix = 0;
+
+      if (i > 0) {
+        for (int shift = 0; ; shift += 7) {
+          byte b = this.data[p++];
+          prefix |= (b & 0x7f) << shift;
+          if (b >= 0)
+            break;
+        }
+      }
+
+      int suffix = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = this.data[p++];
+        suffix |= (b & 0x7f) << shift;
+        if (b >= 0)
+          break;
+      }
+
+      length = prefix + suffix;
+
+      if (length > id.length) {
+        id = Arrays.copyOf (id, Math.max (length, 2 * id.length));
+      }
+
+      System.arraycopy (this.data, p, id, prefix, suffix);
+      p += suffix;
+    }
+
+    return new String (id, 0, length, UTF8);
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid An internal docid.
+   *  @return The external id, or null if the document has none.
+   */
+  public String getExternalDocid (int docid) {
+    int ordinal = this.docOrdinal[docid];
+    return (ordinal < 0) ? null : this.getExternalId (ordinal);
+  }
+
+  /**
+   *  Estimate the memory used by the store.
+   *  @return The approximate size of the store in bytes.
+   */
+  public long ramBytesUsed () {
+    return 64L + 4 * 16L +
+      4L * (this.docOrdinal.length + this.ordinalDocid.length +
+            this.blockOffsets.length) +
+      this.data.length;
+  }
+
+  /**
+   *  Get the number of external ids.
+   *  @return The number of external ids.
+   */
+  public int size () {
+    return this.numIds;
+  }
+
+  /**
+   *  Get the internal docid of the document that has an external id.
+   *  The store is immutable, so lookups may run in parallel.
+   *  @param externalId The external id.
+   *  @return The internal docid, or -1 if no document has the id.
+   */
+  public int getDocid (String externalId) {
+
+    if (this.numIds == 0)
+      return -1;
+
+    byte[] key = externalId.getBytes (UTF8);
+
+    //  Find the last block whose first id is not after the key.  The
+    //  first id of a block is stored in full, after its length.
+
+    int lo = 0;
+    int hi = this.blockOffsets.length - 1;
+
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      int p = this.blockOffsets[mid];
+      int length = 0;
+
+      for (int shift = 0; ; shift += 7) {
+        byte b = this.data[p++];
+        length |= (b & 0x7f) << shift;
+        if (b >= 0)
+          break;
+      }
+
+      if (compare (this.data, p, length, key, key.length) <= 0) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+
+    //  Scan the block.  Ids are sorted, so the scan stops at the
+    //  first id that is not before the key.  matched is the length of
+    //  the prefix that the previous id shares with the key, so each
+    //  id is compared in place, starting where it differs from the
+    //  previous id.
+
+    int p = this.blockOffsets[lo];
+    int end = Math.min (BLOCK_SIZE, this.numIds - (lo << BLOCK_SHIFT));
+    int matched = 0;
+
+    for (int i = 0; i < end; i++) {
+      int prefix = 0;
+
+      if (i > 0) {
+        for (int shift = 0; ; shift += 7) {
+          byte b = this.data[p++];
+          prefix |= (b & 0x7f) << shift;
+          if (b >= 0)
+            break;
+        }
+      }
+
+      int suffix = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = this.data[p++];
+        suffix |= (b & 0x7f) << shift;
+        if (b >= 0)
+          break;
+      }
+
+      //  If the id shares more with the previous id than the previous
+      //  id shares with the key, it is also before the key.
+
+      if (prefix <= matched) {
+        int k = 0;
+
+        while ((k < suffix) && (prefix + k < key.length) &&
+               (this.data[p + k] == key[prefix + k])) {
+          k ++;
+        }
+
+        matched = prefix + k;
+
+        if ((k == suffix) && (matched == key.length)) {
+          return this.ordinalDocid[(lo << BLOCK_SHIFT) + i];
+        } else if ((k == suffix) ||
+                   ((matched < key.length) &&
+                    ((this.data[p + k] & 0xff) < (key[matched] & 0xff)))) {
+          matched = Math.min (matched, key.length);	// id < key
+        } else {
+          break;					// id > key
+        }
+      }
+
+      p += suffix;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Compare two byte strings in unsigned byte order, which is the
+   *  order of the terms dictionary.
+   */
+  private static int compare (byte[] a, int aOffset, int aLength,
+                              byte[] b, int bLength) {
+    int length = Math.min (aLength, bLength);
+
+    for (int i = 0; i < length; i++) {
+      int diff = (a[aOffset + i] & 0xff) - (b[i] & 0xff);
+
+      if (diff != 0)
+        return diff;
+    }
+
+    return aLength - bLength;
+  }
+}
@@ -18,6 +18,13 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static DocNormStore DOCNORMSTORE;
+  private static ExternalIdStore EXTERNALIDSTORE;
+  private static CollectionStats COLLECTIONSTATS;
+  private static InvListCache INVLISTCACHE = null;
+  private static PostingsSnapshot POSTINGSSNAPSHOT = null;
+  private static BlockMaxIndex BLOCKMAXINDEX = null;
+  private static ImpactIndex IMPACTINDEX = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -40,7 +47,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static int getDocCount (String fieldName) throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.COLLECTIONSTATS.getDocCount (fieldName);
   }
 
   /**
@@ -50,11 +57,67 @@ public class Idx {
    * @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
+    String eid = Idx.EXTERNALIDSTORE.getExternalDocid(iid);
+
+    if (eid == null) {
+      Document d = Idx.INDEXREADER.document(iid);
+      eid = d.get("externalId");
+    }
     return eid;
   }
 
+  /**
+   * Get the ordinal of a document's external id.  Comparing the
+   * ordinals of two documents compares their external ids, without
+   * decoding the ids.
+   * @param iid The internal document id of the document.
+   * @return The ordinal, or -1 if the document has no external id.
+   */
+  public static int getExternalIdOrdinal(int iid) {
+    return Idx.EXTERNALIDSTORE.getOrdinal(iid);
+  }
+
+  /**
+   *  Get the inverted list for a term.  If a posting list cache is
+   *  enabled, the inverted list may be shared with other queries, so
+   *  it must not be modified.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList getInvList (String termString, String fieldString)
+    throws IOException {
+
+    if (Idx.INVLISTCACHE != null) {
+      return Idx.INVLISTCACHE.get (termString, fieldString).view ();
+    } else {
+      return Idx.readInvList (termString, fieldString);
+    }
+  }
+
+  /**
+   *  Read the inverted list for a term from the postings snapshot,
+   *  if there is one and it has the field, otherwise from the index.
+   *  This bypasses the posting list cache.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList readInvList (String termString, String fieldString)
+    throws IOException {
+
+    if (Idx.POSTINGSSNAPSHOT != null) {
+      InvList list = Idx.POSTINGSSNAPSHOT.getInvList (termString, fieldString);
+
+      if (list != null)
+        return list;
+    }
+
+    return new InvList (termString, fieldString);
+  }
+
   /**
    *  Get the length of the specified field in the specified document.
    *  @param fieldName Name of field to access lengths.
@@ -66,10 +129,91 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the integer id of a field, for use with getFieldLengths.
+   *  @param fieldName Name of field.
+   *  @return The field id.
+   *  @throws IllegalArgumentException The field has no lengths.
+   */
+  public static int getFieldId (String fieldName)
+    throws IllegalArgumentException {
+
+    int fieldId = Idx.DOCLENGTHSTORE.getFieldId (fieldName);
+
+    if (fieldId < 0) {
+      throw new IllegalArgumentException
+        ("Field " + fieldName + " has no document lengths.");
+    }
+
+    return fieldId;
+  }
+
+  /**
+   *  Get the lengths of a field in every document.  Query operators
+   *  look the array up once, and then a document's length is a
+   *  single array access.  The array must not be modified.
+   *  @param fieldId The field id, from getFieldId.
+   *  @return The field lengths, indexed by internal docid.
+   */
+  public static int[] getFieldLengths (int fieldId) {
+    return Idx.DOCLENGTHSTORE.getDocLengths (fieldId);
+  }
+
+  /**
+   *  Get the BM25 length normalizer, k1 * (1 - b + b * length /
+   *  avgLength), of a field in every document.  The array is cached
+   *  and shared, and it must not be modified.
+   *  @param fieldId The field id, from getFieldId.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param avgLength The average length of the field.
+   *  @return The normalizers, indexed by internal docid.
+   */
+  public static double[] getBM25Norms (int fieldId, double k1, double b,
+                                       double avgLength) {
+    return Idx.DOCNORMSTORE.getBM25Norms (fieldId, k1, b, avgLength);
+  }
+
+  /**
+   *  Get the Indri denominator, length + mu, of a field in every
+   *  document.  The array is cached and shared, and it must not be
+   *  modified.
+   *  @param fieldId The field id, from getFieldId.
+   *  @param mu The Indri mu parameter.
+   *  @return The denominators, indexed by internal docid.
+   */
+  public static double[] getIndriNorms (int fieldId, double mu) {
+    return Idx.DOCNORMSTORE.getIndriNorms (fieldId, mu);
+  }
+
+  /**
+   *  Get the Indri default score factor, mu / (length + mu), of a
+   *  field in every document.  The array is cached and shared, and
+   *  it must not be modified.
+   *  @param fieldId The field id, from getFieldId.
+   *  @param mu The Indri mu parameter.
+   *  @return The factors, indexed by internal docid.
+   */
+  public static double[] getIndriDefaultFactors (int fieldId, double mu) {
+    return Idx.DOCNORMSTORE.getIndriDefaultFactors (fieldId, mu);
+  }
+
+  /**
+   *  Get the smallest length of a field in any document.
+   *  @param fieldId The field id, from getFieldId.
+   *  @return The smallest field length, or 0 if some document doesn't
+   *  have the field.
+   */
+  public static int getMinFieldLength (int fieldId) {
+    return Idx.DOCLENGTHSTORE.getMinDocLength (fieldId);
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
-   * exists, throw an exception.
+   * exists, throw an exception.  The lookup is a binary search of the
+   * ExternalIdStore, so it is cheap enough to call for every
+   * relevance judgment.
    * @param externalId
    * @return iternal docid.
    * @throws Exception Could not read the internal document id from the index.
@@ -77,17 +221,12 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
-    Query q = new TermQuery(new Term("externalId", externalId));
-
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
+    int docid = Idx.EXTERNALIDSTORE.getDocid(externalId);
 
-    if (hits.length < 1) {
+    if (docid < 0) {
       throw new Exception("External id not found.");
     } else {
-      return hits[0].doc;
+      return docid;
     }
   }
 
@@ -97,7 +236,22 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.COLLECTIONSTATS.getNumDocs();
+  }
+
+  /**
+   *  Get the document frequency and collection term frequency of a
+   *  term from the terms dictionary, without reading its postings.
+   *  The statistics are cached, and they count deleted documents.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The term statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static CollectionStats.TermStats getTermStats (String termString,
+                                                        String fieldString)
+    throws IOException {
+    return Idx.COLLECTIONSTATS.getTermStats (termString, fieldString);
   }
 
   /**
@@ -110,11 +264,98 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.COLLECTIONSTATS.getSumOfFieldLengths (fieldName);
+  }
+
+  /**
+   *  Enable a process-wide posting list cache.  See {@link InvListCache}.
+   *  @param maxBytes The maximum number of bytes of inverted lists to cache.
+   *  @param compress Whether to store cached lists compressed.
+   */
+  public static void initializeInvListCache (long maxBytes, boolean compress) {
+    Idx.INVLISTCACHE = new InvListCache (maxBytes, compress);
   }
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Read inverted lists from a memory-mapped postings snapshot
+   *  instead of the Lucene index.  See {@link PostingsSnapshot}.
+   *  @param snapshotPath A directory that contains a postings snapshot.
+   *  @throws IllegalArgumentException The snapshot doesn't match the index.
+   *  @throws IOException Error accessing the snapshot.
+   */
+  public static void initializePostingsSnapshot (String snapshotPath)
+    throws IllegalArgumentException, IOException {
+    Idx.POSTINGSSNAPSHOT = PostingsSnapshot.open (snapshotPath, Idx.INDEXREADER);
+  }
+
+  /**
+   *  Read BM25 block maxima from a directory.  See {@link BlockMaxIndex}.
+   *  @param path A directory that contains block maxima.
+   *  @param b The BM25 b parameter.
+   *  @throws IllegalArgumentException The block maxima don't match
+   *  the index or b.
+   *  @throws IOException Error accessing the block maxima.
+   */
+  public static void initializeBlockMaxIndex (String path, double b)
+    throws IllegalArgumentException, IOException {
+    Idx.BLOCKMAXINDEX = BlockMaxIndex.open (path, Idx.INDEXREADER, b);
+  }
+
+  /**
+   *  Get the stored block maxima of a term's BM25 normalized tf.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param b The BM25 b parameter.
+   *  @return The block maxima, or null if none are stored for the
+   *  field and b.
+   *  @throws IOException Error accessing the block maxima.
+   */
+  public static BlockMaxIndex.Blocks getBlockMaxNormalizedTf (String termString,
+                                                              String fieldString,
+                                                              double b)
+    throws IOException {
+
+    if ((Idx.BLOCKMAXINDEX == null) || (Idx.BLOCKMAXINDEX.getB () != b))
+      return null;
+
+    return Idx.BLOCKMAXINDEX.getBlocks (termString, fieldString);
+  }
+
+  /**
+   *  Read an impact-ordered BM25 index from a directory.  See
+   *  {@link ImpactIndex}.
+   *  @param path A directory that contains an impact-ordered index.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @throws IllegalArgumentException The impacts don't match the
+   *  index, k1 or b.
+   *  @throws IOException Error accessing the impacts.
+   */
+  public static void initializeImpactIndex (String path, double k1, double b)
+    throws IllegalArgumentException, IOException {
+    Idx.IMPACTINDEX = ImpactIndex.open (path, Idx.INDEXREADER, k1, b);
+  }
+
+  /**
+   *  Get the impact-ordered index, if there is one.
+   *  @return The impact-ordered index, or null.
+   */
+  public static ImpactIndex getImpactIndex () {
+    return Idx.IMPACTINDEX;
+  }
+
+  /**
+   *  Print the posting list cache's counters, if the cache is enabled.
+   */
+  public static void printInvListCacheStatistics () {
+    if (Idx.INVLISTCACHE != null) {
+      Idx.INVLISTCACHE.printStatistics ();
+    }
+  }
+
+  /**
+   *  Open a Lucene index and the associated DocLengthStore and
+   *  ExternalIdStore.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -139,6 +380,20 @@ public class Idx {
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
+
+    //  The ranked models' length normalizers are computed from the
+    //  lengths when they are first needed.
+
+    Idx.DOCNORMSTORE = new DocNormStore (Idx.DOCLENGTHSTORE);
+
+    //  External ids are read from a compact copy of the external id
+    //  terms, so that results don't need stored documents.
+
+    Idx.EXTERNALIDSTORE = new ExternalIdStore (Idx.INDEXREADER, "externalId");
+
+    //  Corpus and field statistics are read once.
+
+    Idx.COLLECTIONSTATS = new CollectionStats (Idx.INDEXREADER);
   }
 
 }
@@ -0,0 +1,578 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  An impact-ordered BM25 index, for score-at-a-time evaluation (see
+ *  {@link Saat}).  Run it to build the impact-ordered index of a
+ *  Lucene index for one value of the BM25 k1 and b parameters; see
+ *  the usage message.
+ *  <p>
+ *  The impact of a posting is its BM25 term weight,
+ *  rsj * tf / (tf + k1 * ((1-b) + b * length / avgLength)), quantized
+ *  to an integer from 1 to levels.  The scale, the largest weight in
+ *  the index divided by levels, is the same for every field, so the
+ *  impacts of different terms can be added.  A weight of 0 (a term
+ *  that occurs in more than half of the documents) has no impact, so
+ *  its postings are dropped.
+ *  </p><p>
+ *  Each inverted list is stored as segments of postings that have the
+ *  same impact, in descending order of impact, with the docids of a
+ *  segment in ascending order.  Each field that has positions and
+ *  lengths is stored in one file of big-endian values.
+ *  </p>
+ *  <pre>
+ *    FIELD.impact  header:        magic, version, maxDoc, levels,
+ *                                 numTerms, numSegments, numPostings (ints),
+ *                                 k1, b, avgLength, scale (doubles)
+ *                  termOffset:    numTerms+1 byte offsets into the term strings
+ *                  segmentStart:  numTerms+1 indexes of each term's first segment
+ *                  impact:        numSegments impacts
+ *                  postingStart:  numSegments+1 indexes of each segment's first posting
+ *                  docid:         numPostings docids
+ *                  termBytes:     the UTF-8 terms, in Lucene's (byte) order
+ *  </pre>
+ *  <p>
+ *  The files are memory-mapped when the index is opened.  Opening
+ *  fails if the Lucene index, k1, b or a field's average length has
+ *  changed since the impacts were built.
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables -----------------------
+
+  static String usage =
+    "Usage:  java ImpactIndex -index INDEX_PATH -k1 K1 -b B [-levels N]\n" +
+    "                         [-output PATH]\n\n" +
+    "Build the impact-ordered BM25 index of every field that has positions\n" +
+    "for BM25:k_1=K1 and BM25:b=B, with impacts quantized to N levels\n" +
+    "(default 255).  PATH defaults to INDEX_PATH.impact-k1K1-bB, next to\n" +
+    "the index, where QryEval looks for it when evaluationMode=saat.\n";
+
+  /**
+   *  The default number of impact levels.
+   */
+  public static final int DEFAULT_LEVELS = 255;
+
+  private static final int MAGIC = 0x5145494d;		// "QEIM"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 7 * 4 + 4 * 8;
+
+  private final double k1;
+  private final double b;
+
+  /**
+   *  The BM25 weight of one unit of impact.
+   */
+  private double scale = Double.NaN;
+
+  /**
+   *  The mapped fields, indexed by field name.
+   */
+  private Map<String, FieldImpacts> fields =
+    new HashMap<String, FieldImpacts> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The impact-ordered inverted list of one term.
+   */
+  public static class Segments {
+
+    /**
+     *  The impact of each segment, in descending order.
+     */
+    public final int[] impact;
+
+    /**
+     *  The index in docids of each segment's first posting.  There is
+     *  one more entry than there are segments; the last one is the
+     *  end of the last segment.
+     */
+    public final int[] postingStart;
+
+    /**
+     *  The docids of the field.  Read-only, and shared by every term.
+     */
+    public final IntBuffer docids;
+
+    public Segments (int[] impact, int[] postingStart, IntBuffer docids) {
+      this.impact = impact;
+      this.postingStart = postingStart;
+      this.docids = docids;
+    }
+  }
+
+  /**
+   *  The mapped file of one field.
+   */
+  private static class FieldImpacts {
+    int numTerms;
+    int numSegments;
+    int numPostings;
+    ByteBuffer data;
+    IntBuffer ints;
+    IntBuffer docids;
+    int termBytesStart;
+
+    int termOffset (int i) {
+      return this.ints.get (HEADER_BYTES / 4 + i);
+    }
+
+    int segmentStart (int i) {
+      return this.ints.get (HEADER_BYTES / 4 + (this.numTerms + 1) + i);
+    }
+
+    int impact (int i) {
+      return this.ints.get (HEADER_BYTES / 4 + 2 * (this.numTerms + 1) + i);
+    }
+
+    int postingStart (int i) {
+      return this.ints.get (HEADER_BYTES / 4 + 2 * (this.numTerms + 1) +
+                            this.numSegments + i);
+    }
+
+    /**
+     *  Compare the i'th term with a key, in unsigned byte order.
+     */
+    int compareTerm (int i, byte[] key) {
+      int start = this.termBytesStart + this.termOffset (i);
+      int end = this.termBytesStart + this.termOffset (i + 1);
+      int len = Math.min (end - start, key.length);
+
+      for (int k = 0; k < len; k++) {
+        int diff = (this.data.get (start + k) & 0xff) - (key[k] & 0xff);
+
+        if (diff != 0)
+          return diff;
+      }
+
+      return (end - start) - key.length;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Use {@link #open} to open an index.
+   */
+  private ImpactIndex (double k1, double b) {
+    this.k1 = k1;
+    this.b = b;
+  }
+
+  /**
+   *  Get the default location of the impact-ordered index of an index.
+   *  @param indexPath The index directory.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return A directory next to the index.
+   */
+  public static String getDefaultPath (String indexPath, double k1, double b) {
+    return new File (indexPath).getAbsolutePath () + ".impact-k1" + k1 + "-b" + b;
+  }
+
+  /**
+   *  Get the average length of a field, as QrySopScore computes it.
+   */
+  private static double getAvgLength (String field) throws IOException {
+    return Idx.getSumOfFieldLengths (field) / (1.0 + Idx.getDocCount (field));
+  }
+
+  /**
+   *  Get the BM25 RSJ weight of a term, as QrySopScore computes it.
+   */
+  private static double getRsj (double N, double df) {
+    double rsj = 1.0 * (N - df + 0.5) / (df + 0.5);
+    return (rsj < 1.0) ? 0.0 : Math.log (rsj);
+  }
+
+  /**
+   *  Map the impact-ordered index in a directory.
+   *  @param path The directory.
+   *  @param reader The index that the impacts must match.
+   *  @param k1 The BM25 k1 parameter that the impacts must match.
+   *  @param b The BM25 b parameter that the impacts must match.
+   *  @return The impact-ordered index.
+   *  @throws IllegalArgumentException The impacts are invalid or stale.
+   *  @throws IOException Error accessing the impacts.
+   */
+  public static ImpactIndex open (String path, IndexReader reader,
+                                  double k1, double b)
+    throws IllegalArgumentException, IOException {
+
+    ImpactIndex index = new ImpactIndex (k1, b);
+    File[] files = new File (path).listFiles ();
+
+    if (files == null) {
+      throw new IllegalArgumentException ("Can't read impacts " + path);
+    }
+
+    for (File f : files) {
+      String name = f.getName ();
+
+      if (! name.endsWith (".impact"))
+        continue;
+
+      String field = name.substring (0, name.length () - ".impact".length ());
+      FieldImpacts fi = new FieldImpacts ();
+      fi.data = map (f);
+      fi.ints = fi.data.asIntBuffer ();
+
+      if ((fi.ints.get (0) != MAGIC) || (fi.ints.get (1) != VERSION)) {
+        throw new IllegalArgumentException ("Not an impact file: " + f);
+      }
+
+      double scale = fi.data.getDouble (52);
+
+      if ((fi.ints.get (2) != reader.maxDoc ()) ||
+          (fi.data.getDouble (28) != k1) ||
+          (fi.data.getDouble (36) != b) ||
+          (fi.data.getDouble (44) != getAvgLength (field)) ||
+          (! Double.isNaN (index.scale) && (scale != index.scale))) {
+        throw new IllegalArgumentException
+          ("The impacts don't match the index and BM25 parameters: " + f);
+      }
+
+      index.scale = scale;
+      fi.numTerms = fi.ints.get (4);
+      fi.numSegments = fi.ints.get (5);
+      fi.numPostings = fi.ints.get (6);
+
+      int docidStart = HEADER_BYTES / 4 + 2 * (fi.numTerms + 1) +
+        fi.numSegments + (fi.numSegments + 1);
+
+      fi.ints.position (docidStart);
+      fi.docids = fi.ints.slice ();
+      fi.docids.limit (fi.numPostings);
+      fi.ints.position (0);
+      fi.termBytesStart = 4 * (docidStart + fi.numPostings);
+
+      index.fields.put (field, fi);
+    }
+
+    return index;
+  }
+
+  /**
+   *  Map a file into memory, read-only.
+   */
+  private static MappedByteBuffer map (File f) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile (f, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      return channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    } finally {
+      raf.close ();			// The mapping stays valid.
+    }
+  }
+
+  /**
+   *  Get the BM25 k1 parameter of the impacts.
+   *  @return The k1 parameter.
+   */
+  public double getK1 () {
+    return this.k1;
+  }
+
+  /**
+   *  Get the BM25 b parameter of the impacts.
+   *  @return The b parameter.
+   */
+  public double getB () {
+    return this.b;
+  }
+
+  /**
+   *  Get the BM25 weight of one unit of impact.
+   *  @return The scale.
+   */
+  public double getScale () {
+    return this.scale;
+  }
+
+  /**
+   *  Get the impact-ordered inverted list of a term.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The term's segments, or null if the index doesn't have
+   *  the field.
+   *  @throws IOException Error decoding the term.
+   */
+  public Segments getSegments (String termString, String fieldString)
+    throws IOException {
+
+    FieldImpacts fi = this.fields.get (fieldString);
+
+    if (fi == null)
+      return null;
+
+    byte[] key = termString.getBytes ("UTF-8");
+    int lo = 0;
+    int hi = fi.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = fi.compareTerm (mid, key);
+
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        int start = fi.segmentStart (mid);
+        int numSegments = fi.segmentStart (mid + 1) - start;
+        int[] impact = new int[numSegments];
+        int[] postingStart = new int[numSegments + 1];
+
+        for (int i = 0; i < numSegments; i++) {
+          impact[i] = fi.impact (start + i);
+          postingStart[i] = fi.postingStart (start + i);
+        }
+
+        postingStart[numSegments] = fi.postingStart (start + numSegments);
+        return new Segments (impact, postingStart, fi.docids);
+      }
+    }
+
+    return new Segments (new int[0], new int[] { 0 }, fi.docids);
+  }
+
+  /**
+   *  Build the impact-ordered index of every field that has positions
+   *  and lengths.  Idx must be initialized.
+   *  @param path The directory to write the impacts to.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param levels The number of impact levels.
+   *  @throws IOException Error accessing the index or the impacts.
+   */
+  public static void export (String path, double k1, double b, int levels)
+    throws IOException {
+
+    File dir = new File (path);
+
+    if (! dir.isDirectory () && ! dir.mkdirs ()) {
+      throw new IOException ("Can't create " + path);
+    }
+
+    Fields fields = MultiFields.getFields (Idx.INDEXREADER);
+    Bits liveDocs = MultiFields.getLiveDocs (Idx.INDEXREADER);
+    List<String> names = new ArrayList<String> ();
+    List<int[]> lengths = new ArrayList<int[]> ();
+
+    for (String field : fields) {
+      Terms terms = fields.terms (field);
+
+      if ((terms == null) || ! terms.hasPositions ())
+        continue;
+
+      try {
+        lengths.add (Idx.getFieldLengths (Idx.getFieldId (field)));
+        names.add (field);
+      } catch (IllegalArgumentException ex) {
+        continue;			// No lengths, so no BM25 scores.
+      }
+    }
+
+    //  The first pass finds the largest weight, which sets the scale.
+
+    double maxWeight = 0.0;
+
+    for (int i = 0; i < names.size (); i++) {
+      maxWeight = Math.max (maxWeight,
+                            scanField (names.get (i), fields.terms (names.get (i)),
+                                       liveDocs, lengths.get (i), k1, b,
+                                       Double.NaN, 0, null));
+    }
+
+    double scale = (maxWeight > 0.0) ? maxWeight / levels : 1.0;
+
+    for (int i = 0; i < names.size (); i++) {
+      System.out.println ("Building " + names.get (i));
+      scanField (names.get (i), fields.terms (names.get (i)), liveDocs,
+                 lengths.get (i), k1, b, scale, levels, dir);
+    }
+  }
+
+  /**
+   *  Scan the postings of one field.  If dir is null, just find the
+   *  largest weight, otherwise build the field's impacts.
+   *  @return The largest weight in the field.
+   */
+  private static double scanField (String field, Terms terms, Bits liveDocs,
+                                   int[] lengths, double k1, double b,
+                                   double scale, int levels, File dir)
+    throws IOException {
+
+    double N = Idx.getNumDocs ();
+    double avgLength = getAvgLength (field);
+    double maxWeight = 0.0;
+
+    ByteArrayOutputStream termBytes = new ByteArrayOutputStream ();
+    int[] termOffset = new int[1024];
+    int[] segmentStart = new int[1024];
+    int[] impact = new int[1024];
+    int[] postingStart = new int[1024];
+    int[] docids = new int[1024];
+    long[] keys = new long[1024];
+    int numTerms = 0;
+    int numSegments = 0;
+    int numPostings = 0;
+
+    TermsEnum ithTerm = terms.iterator (null);
+    DocsEnum postings = null;
+    BytesRef term;
+
+    while ((term = ithTerm.next ()) != null) {
+
+      if (numTerms + 1 >= termOffset.length) {
+        termOffset = Arrays.copyOf (termOffset, termOffset.length * 2);
+        segmentStart = Arrays.copyOf (segmentStart, segmentStart.length * 2);
+      }
+
+      termOffset[numTerms] = termBytes.size ();
+      termBytes.write (term.bytes, term.offset, term.length);
+      segmentStart[numTerms] = numSegments;
+      numTerms ++;
+
+      double rsj = getRsj (N, ithTerm.docFreq ());
+
+      if (rsj == 0.0)
+        continue;			// No impact.
+
+      //  Sort the postings by descending impact, then by docid.
+
+      postings = ithTerm.docs (liveDocs, postings, DocsEnum.FLAG_FREQS);
+      int n = 0;
+      int docid;
+
+      while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+        double tf = postings.freq ();
+        double weight =
+          rsj * tf / (tf + k1 * (1.0 - b + b * lengths[docid] / avgLength));
+
+        maxWeight = Math.max (maxWeight, weight);
+
+        if (dir == null)
+          continue;
+
+        int q = (int) Math.max (1, Math.min (levels, Math.round (weight / scale)));
+
+        if (n >= keys.length)
+          keys = Arrays.copyOf (keys, keys.length * 2);
+
+        keys[n ++] = ((long) (levels - q) << 32) | docid;
+      }
+
+      Arrays.sort (keys, 0, n);
+
+      for (int i = 0; i < n; i++) {
+        int q = levels - (int) (keys[i] >>> 32);
+
+        if ((i == 0) || (q != impact[numSegments - 1])) {
+          if (numSegments + 1 >= impact.length) {
+            impact = Arrays.copyOf (impact, impact.length * 2);
+            postingStart = Arrays.copyOf (postingStart, postingStart.length * 2);
+          }
+          impact[numSegments] = q;
+          postingStart[numSegments] = numPostings;
+          numSegments ++;
+        }
+
+        if (numPostings >= docids.length)
+          docids = Arrays.copyOf (docids, docids.length * 2);
+
+        docids[numPostings ++] = (int) keys[i];
+      }
+    }
+
+    if (dir == null)
+      return maxWeight;
+
+    termOffset[numTerms] = termBytes.size ();
+    segmentStart[numTerms] = numSegments;
+    postingStart[numSegments] = numPostings;
+
+    DataOutputStream out = new DataOutputStream
+      (new BufferedOutputStream
+       (new FileOutputStream (new File (dir, field + ".impact")), 1 << 16));
+
+    out.writeInt (MAGIC);
+    out.writeInt (VERSION);
+    out.writeInt (Idx.INDEXREADER.maxDoc ());
+    out.writeInt (levels);
+    out.writeInt (numTerms);
+    out.writeInt (numSegments);
+    out.writeInt (numPostings);
+    out.writeDouble (k1);
+    out.writeDouble (b);
+    out.writeDouble (avgLength);
+    out.writeDouble (scale);
+
+    for (int i = 0; i <= numTerms; i++)
+      out.writeInt (termOffset[i]);
+    for (int i = 0; i <= numTerms; i++)
+      out.writeInt (segmentStart[i]);
+    for (int i = 0; i < numSegments; i++)
+      out.writeInt (impact[i]);
+    for (int i = 0; i <= numSegments; i++)
+      out.writeInt (postingStart[i]);
+    for (int i = 0; i < numPostings; i++)
+      out.writeInt (docids[i]);
+
+    termBytes.writeTo (out);
+    out.close ();
+
+    System.out.println ("    " + numTerms + " terms, " + numSegments +
+                        " segments, " + numPostings + " postings");
+    return maxWeight;
+  }
+
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+    double k1 = Double.NaN;
+    double b = Double.NaN;
+    int levels = DEFAULT_LEVELS;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i + 1];
+      } else if ("-k1".equals (args[i])) {
+        k1 = Double.parseDouble (args[i + 1]);
+      } else if ("-b".equals (args[i])) {
+        b = Double.parseDouble (args[i + 1]);
+      } else if ("-levels".equals (args[i])) {
+        levels = Integer.parseInt (args[i + 1]);
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i + 1];
+      }
+    }
+
+    if ((indexPath == null) || ! (k1 >= 0.0) || ! (b >= 0.0 && b <= 1.0) ||
+        (levels < 1) || (levels > 65535)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    if (outputPath == null) {
+      outputPath = getDefaultPath (indexPath, k1, b);
+    }
+
+    Idx.initialize (indexPath);
+    export (outputPath, k1, b, levels);
+    Idx.INDEXREADER.close ();
+  }
+}
@@ -0,0 +1,331 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  Intersection kernels for sorted arrays of docids.  They are used by
+ *  the Boolean #AND when it is evaluated a batch at a time (see
+ *  QrySopAnd.getScoreBatch), and compared with the scalar merge by
+ *  PostingsBenchmark.
+ *  <p>
+ *  The kernels work on blocks of docids.  Two lists of similar length
+ *  are intersected by comparing every docid of a block of one list
+ *  with every docid of a block of the other, and then moving past the
+ *  block whose last docid is smaller.  A short list is intersected
+ *  with a long list by galloping over the long list's blocks and
+ *  counting the docids that are smaller than the target within a
+ *  block.  The comparisons in a block don't branch on the data, so
+ *  they aren't mispredicted, as the comparisons of a merge are.
+ *  </p><p>
+ *  If the jdk.incubator.vector module is present (java --add-modules
+ *  jdk.incubator.vector), the kernels in IntersectVector compare a
+ *  block of SIMD lanes with one instruction.  Otherwise the scalar
+ *  kernels here, with blocks of BLOCK docids, are the fallback.  Both
+ *  find the same docids.  The scalar merge finishes the ends of the
+ *  lists, which are shorter than a block.
+ *  </p>
+ */
+public class Intersect {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The number of docids in a block of the scalar kernels.
+   */
+  static final int BLOCK = 4;
+
+  /**
+   *  Lists are intersected by galloping if one is at least
+   *  GALLOP_RATIO times as long as the other.
+   */
+  private static final int GALLOP_RATIO = 8;
+
+  /**
+   *  Whether the Vector API kernels are used.
+   */
+  static final boolean VECTOR =
+    ModuleLayer.boot ().findModule ("jdk.incubator.vector").isPresent ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Find the first docid at or after a target, as
+   *  InvList.findDocid does.
+   *  @param docids A sorted array of docids.
+   *  @param from The index to start from.
+   *  @param to The index after the last docid.
+   *  @param target The docid to search for.
+   *  @return The index of the first docid in [from, to) that is at
+   *  least target, or to if there is none.
+   */
+  public static int advance (int[] docids, int from, int to, int target) {
+    return VECTOR ?
+      IntersectVector.advance (docids, from, to, target) :
+      advanceScalar (docids, from, to, target);
+  }
+
+  /**
+   *  advance, with the scalar kernel.
+   */
+  static int advanceScalar (int[] docids, int from, int to, int target) {
+
+    if ((from >= to) || (docids[from] >= target))
+      return from;
+
+    //  Gallop over blocks until the target is bracketed.  Invariant:
+    //  docids[lo] < target, and hi == to or docids[hi] >= target once
+    //  the loop exits.
+
+    int lo = from;
+    int hi = (int) Math.min ((long) from + BLOCK, (long) to);
+    int step = BLOCK;
+
+    while ((hi < to) && (docids[hi] < target)) {
+      lo = hi;
+      step <<= 1;
+      hi = (int) Math.min ((long) lo + step, (long) to);
+    }
+
+    //  Binary search down to a block.
+
+    while (hi - lo > BLOCK) {
+      int mid = (lo + hi) >>> 1;
+
+      if (docids[mid] < target) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+
+    //  Count the docids in (lo, hi) that are smaller than the target.
+    //  Docids aren't negative, so the difference doesn't overflow.
+
+    int count = 0;
+
+    for (int i = lo + 1; i < hi; i++) {
+      count += (docids[i] - target) >>> 31;
+    }
+
+    return lo + 1 + count;
+  }
+
+  /**
+   *  Intersect two sorted lists of docids with the kernel that suits
+   *  their lengths.
+   *  @param a A sorted array of docids.
+   *  @param na The number of docids in a.
+   *  @param b A sorted array of docids.
+   *  @param nb The number of docids in b.
+   *  @param out Receives the docids that are in both lists.  It must
+   *  have room for the shorter list, and it must not be a or b.
+   *  @return The number of docids in the intersection.
+   */
+  public static int intersect (int[] a, int na, int[] b, int nb, int[] out) {
+    return intersect (a, 0, na, b, 0, nb, out, VECTOR);
+  }
+
+  /**
+   *  Intersect a[i..na) and b[j..nb) into out, with the kernel that
+   *  suits their lengths.
+   *  @param vector Whether to use the Vector API kernels.
+   *  @return The number of docids in the intersection.
+   */
+  static int intersect (int[] a, int i, int na, int[] b, int j, int nb,
+                        int[] out, boolean vector) {
+
+    if (na - i > nb - j) {
+      return intersect (b, j, nb, a, i, na, out, vector);
+    }
+
+    if ((long) (na - i) * GALLOP_RATIO <= nb - j) {
+      return vector ?
+        IntersectVector.intersectGalloping (a, i, na, b, j, nb, out) :
+        intersectGalloping (a, i, na, b, j, nb, out);
+    } else {
+      return vector ?
+        IntersectVector.intersectBlocks (a, i, na, b, j, nb, out) :
+        intersectBlocks (a, i, na, b, j, nb, out);
+    }
+  }
+
+  /**
+   *  Intersect k sorted lists of docids.  The two shortest lists are
+   *  intersected first, and then the result is intersected with each
+   *  of the others, from the shortest to the longest.
+   *  @param lists The sorted arrays of docids.
+   *  @param lengths The number of docids in each list.
+   *  @param out Receives the docids that are in every list.  It must
+   *  have room for the shortest list, and it must not be a list.
+   *  @return The number of docids in the intersection.
+   */
+  public static int intersect (int[][] lists, int[] lengths, int[] out) {
+    return intersect (lists, new int[lists.length], lengths, out, VECTOR);
+  }
+
+  /**
+   *  Intersect k ranges of sorted arrays of docids, lists[i][from[i]]
+   *  to lists[i][to[i] - 1].  See intersect (int[][], int[], int[]).
+   *  @param lists The sorted arrays of docids.
+   *  @param from The index of the first docid of each range.
+   *  @param to The index after the last docid of each range.
+   *  @param out Receives the docids that are in every range.  It must
+   *  have room for the shortest range, and it must not be a list.
+   *  @return The number of docids in the intersection.
+   */
+  public static int intersect (int[][] lists, int[] from, int[] to,
+                               int[] out) {
+    return intersect (lists, from, to, out, VECTOR);
+  }
+
+  /**
+   *  intersect (int[][], int[], int[], int[]), with the Vector API
+   *  kernels or the scalar kernels.
+   *  @param vector Whether to use the Vector API kernels.
+   */
+  static int intersect (int[][] lists, int[] from, int[] to, int[] out,
+                        boolean vector) {
+
+    if (lists.length == 0)
+      return 0;
+
+    //  Sort the ranges by length.  There are few, so insertion sort.
+
+    int[] order = new int[lists.length];
+
+    for (int i = 0; i < order.length; i++) {
+      int j = i;
+
+      for (; (j > 0) &&
+             (to[order[j - 1]] - from[order[j - 1]] > to[i] - from[i]); j--)
+        order[j] = order[j - 1];
+
+      order[j] = i;
+    }
+
+    int first = order[0];
+    int n = to[first] - from[first];
+
+    if (order.length == 1) {
+      System.arraycopy (lists[first], from[first], out, 0, n);
+      return n;
+    }
+
+    //  The block kernels write every docid that they compare, so the
+    //  intermediate results alternate between out and a second buffer
+    //  that are arranged to leave the final result in out.
+
+    int[] other = new int[n];
+    int[] result = ((order.length % 2) == 0) ? out : other;
+    int[] input = lists[first];
+    int start = from[first];
+    int end = to[first];
+
+    for (int k = 1; k < order.length; k++) {
+      n = intersect (input, start, end, lists[order[k]], from[order[k]],
+                     to[order[k]], result, vector);
+
+      if (n == 0)
+        return 0;
+
+      input = result;
+      start = 0;
+      end = n;
+      result = (result == out) ? other : out;
+    }
+
+    return n;
+  }
+
+  /**
+   *  Intersect two sorted lists of docids with a merge, one docid at
+   *  a time.  It is the fallback for lists that are shorter than a
+   *  block.
+   *  @return The number of docids in the intersection.
+   */
+  public static int intersectScalar (int[] a, int na, int[] b, int nb,
+                                     int[] out) {
+    return intersectScalar (a, 0, na, b, 0, nb, out, 0);
+  }
+
+  /**
+   *  Merge a[i..na) and b[j..nb) into out[n..].
+   *  @return The new number of docids in out.
+   */
+  static int intersectScalar (int[] a, int i, int na,
+                              int[] b, int j, int nb,
+                              int[] out, int n) {
+    while ((i < na) && (j < nb)) {
+      if (a[i] < b[j]) {
+        i ++;
+      } else if (a[i] > b[j]) {
+        j ++;
+      } else {
+        out[n ++] = a[i];
+        i ++;
+        j ++;
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   *  Intersect a[i..na) and b[j..nb) a block at a time.  Each docid
+   *  of a's block is compared with every docid of b's block, and it
+   *  is written to out, and counted if any of them is equal.
+   *  @return The number of docids in the intersection.
+   */
+  static int intersectBlocks (int[] a, int i, int na,
+                              int[] b, int j, int nb, int[] out) {
+    int n = 0;
+
+    while ((i + BLOCK <= na) && (j + BLOCK <= nb)) {
+      int b0 = b[j];
+      int b1 = b[j + 1];
+      int b2 = b[j + 2];
+      int b3 = b[j + 3];
+
+      for (int p = i; p < i + BLOCK; p++) {
+        int docid = a[p];
+        int found =
+          ((docid == b0) ? 1 : 0) | ((docid == b1) ? 1 : 0) |
+          ((docid == b2) ? 1 : 0) | ((docid == b3) ? 1 : 0);
+
+        out[n] = docid;
+        n += found;
+      }
+
+      //  Move past the block that ends first, or both.
+
+      int lastA = a[i + BLOCK - 1];
+
+      if (lastA <= b3)
+        i += BLOCK;
+      if (b3 <= lastA)
+        j += BLOCK;
+    }
+
+    return intersectScalar (a, i, na, b, j, nb, out, n);
+  }
+
+  /**
+   *  Intersect a short range a[i..na) with a long range b[j..nb) by
+   *  finding each docid of the short range in the long range.
+   *  @return The number of docids in the intersection.
+   */
+  static int intersectGalloping (int[] a, int i, int na,
+                                 int[] b, int j, int nb, int[] out) {
+    int n = 0;
+
+    for (; (i < na) && (j < nb); i++) {
+      j = advanceScalar (b, j, nb, a[i]);
+
+      if ((j < nb) && (b[j] == a[i])) {
+        out[n ++] = a[i];
+      }
+    }
+
+    return n;
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import jdk.incubator.vector.*;
+
+/**
+ *  The Vector API kernels of Intersect.  A block is the number of int
+ *  lanes of the preferred SIMD species (8 with AVX2, 16 with
+ *  AVX-512).  The kernels find the same docids as the scalar kernels
+ *  in Intersect, which are used if the jdk.incubator.vector module
+ *  isn't present; this class is loaded only if it is.
+ */
+class IntersectVector {
+
+  //  --------------- Constants and variables -----------------------
+
+  private static final VectorSpecies<Integer> SPECIES =
+    IntVector.SPECIES_PREFERRED;
+
+  private static final int LANES = SPECIES.length ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Find the first docid at or after a target.  See
+   *  Intersect.advance.
+   */
+  static int advance (int[] docids, int from, int to, int target) {
+
+    if ((from >= to) || (docids[from] >= target))
+      return from;
+
+    //  Gallop over blocks until the target is bracketed, then binary
+    //  search down to a block, as Intersect.advanceScalar does.
+
+    int lo = from;
+    int hi = (int) Math.min ((long) from + LANES, (long) to);
+    int step = LANES;
+
+    while ((hi < to) && (docids[hi] < target)) {
+      lo = hi;
+      step <<= 1;
+      hi = (int) Math.min ((long) lo + step, (long) to);
+    }
+
+    while (hi - lo > LANES) {
+      int mid = (lo + hi) >>> 1;
+
+      if (docids[mid] < target) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+
+    //  Count the docids in (lo, hi) that are smaller than the target
+    //  with one comparison.  hi - lo - 1 < LANES, and the docids in
+    //  [hi, to) aren't smaller than the target, so a whole block
+    //  after lo can be compared if it ends by to.
+
+    int start = lo + 1;
+    int count;
+
+    if (start + LANES <= to) {
+      count = IntVector.fromArray (SPECIES, docids, start).lt (target)
+        .trueCount ();
+    } else {
+      count = 0;
+
+      for (int i = start; i < hi; i++) {
+        count += (docids[i] - target) >>> 31;
+      }
+    }
+
+    return start + count;
+  }
+
+  /**
+   *  Intersect a[i..na) and b[j..nb) a block at a time.  a's block is
+   *  compared with each docid of b's block, one vector comparison per
+   *  docid, and the lanes that are equal to any of them are written
+   *  to out.  Docids are unique within a list, so a lane matches at
+   *  most one docid of b's block.  (VectorMask.toLong isn't an
+   *  intrinsic in JDK 17, so the mask is written as an int vector.)
+   *  @return The number of docids in the intersection.
+   */
+  static int intersectBlocks (int[] a, int i, int na,
+                              int[] b, int j, int nb, int[] out) {
+    int[] flags = new int[LANES];
+    int n = 0;
+
+    while ((i + LANES <= na) && (j + LANES <= nb)) {
+      IntVector va = IntVector.fromArray (SPECIES, a, i);
+      int lastA = a[i + LANES - 1];
+      int lastB = b[j + LANES - 1];
+
+      //  The blocks overlap unless one ends before the other starts.
+
+      if ((lastA >= b[j]) && (lastB >= a[i])) {
+        VectorMask<Integer> found = va.eq (b[j]);
+
+        for (int k = 1; k < LANES; k++) {
+          found = found.or (va.eq (b[j + k]));
+        }
+
+        //  Write each lane of a's block to out, and count the lanes
+        //  that were found, as Intersect.intersectBlocks does.
+
+        if (found.anyTrue ()) {
+          IntVector.zero (SPECIES).blend (1, found).intoArray (flags, 0);
+
+          for (int l = 0; l < LANES; l++) {
+            out[n] = a[i + l];
+            n += flags[l];
+          }
+        }
+      }
+
+      //  Move past the block that ends first, or both.
+
+      if (lastA <= lastB)
+        i += LANES;
+      if (lastB <= lastA)
+        j += LANES;
+    }
+
+    return Intersect.intersectScalar (a, i, na, b, j, nb, out, n);
+  }
+
+  /**
+   *  Intersect a short range a[i..na) with a long range b[j..nb) by
+   *  finding each docid of the short range in the long range.
+   *  @return The number of docids in the intersection.
+   */
+  static int intersectGalloping (int[] a, int i, int na,
+                                 int[] b, int j, int nb, int[] out) {
+    int n = 0;
+
+    for (; (i < na) && (j < nb); i++) {
+      j = advance (b, j, nb, a[i]);
+
+      if ((j < nb) && (b[j] == a[i])) {
+        out[n ++] = a[i];
+      }
+    }
+
+    return n;
+  }
+}
@@ -14,11 +14,30 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored column-wise in primitive arrays.  The n'th
+ *  posting is described by docids[n] and tfs[n]; its locations are
+ *  positions[posOffsets[n]] ... positions[posOffsets[n+1]-1].  All
+ *  postings share one positions array, so an inverted list is a
+ *  handful of objects no matter how long it is.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of an inverted list that is built by
+   *  appending postings.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   *  findDocid scans this many postings before it switches to a
+   *  galloping search.
+   */
+  private static final int LINEAR_SCAN = 16;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -37,50 +56,35 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term, in
+   *  ascending order.  Only the first df entries are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  protected int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequency:  The number of times the term occurs in the
+   *  specified field of each document.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  protected int[] tfs;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The index in positions of the first location of each posting.
+   *  It has df+1 valid entries, so the locations of posting n end
+   *  at posOffsets[n+1].
+   */
+  protected int[] posOffsets;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The locations where the term occurs, for all postings.  Only
+   *  the first ctf entries are valid.
+   */
+  protected int[] positions;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  The largest tf of each block of postings, or null if they
+   *  haven't been computed since the last posting was appended.
+   */
+  protected BlockMaxIndex.Blocks blockMaxTf = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +92,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -95,9 +100,24 @@ public class InvList {
    *  @param fieldString The field that the term occurs in.
    */
   public InvList(String fieldString) {
+    this ();
     this.field = new String (fieldString);
   }
 
+  /**
+   *  Constructor for subclasses that store their postings somewhere
+   *  other than the posting arrays.  The arrays are not allocated,
+   *  so subclasses must override the methods that access postings.
+   *  @param fieldString The field that the term occurs in.
+   *  @param df The document frequency of the term.
+   *  @param ctf The collection term frequency of the term.
+   */
+  protected InvList(String fieldString, int df, int ctf) {
+    this.field = fieldString;
+    this.df = df;
+    this.ctf = ctf;
+  }
+
   /**
    *  Get an inverted list from the index.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
@@ -113,10 +133,21 @@ public class InvList {
     //  Prepare to access the index.
 
     BytesRef termBytes = new BytesRef(termString);
-    Term term = new Term(fieldString, termBytes);
+    CollectionStats.TermStats stats = Idx.getTermStats(termString, fieldString);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int termDf = stats.df;
+
+    if (termDf < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The index statistics include deleted documents, so they are
+    //  upper bounds that are used to size the arrays exactly once.
+
+    long termCtf = stats.ctf;
+
+    this.allocate (termDf, (termCtf > 0) ? (int) termCtf : termDf);
 
     //  Lookup the inverted list.
 
@@ -133,14 +164,50 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
       this.df++;
       this.ctf += tf;
+      this.posOffsets[this.df] = this.ctf;
+    }
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param numPostings The number of postings to make room for.
+   *  @param numPositions The number of positions to make room for.
+   */
+  private void allocate (int numPostings, int numPositions) {
+    this.docids = new int[numPostings];
+    this.tfs = new int[numPostings];
+    this.posOffsets = new int[numPostings + 1];
+    this.positions = new int[numPositions];
+  }
+
+  /**
+   *  Grow the posting arrays, if necessary, so that they can hold
+   *  the specified number of postings and positions.
+   *  @param numPostings The number of postings that must fit.
+   *  @param numPositions The number of positions that must fit.
+   */
+  private void ensureCapacity (int numPostings, int numPositions) {
+
+    if (numPostings > this.docids.length) {
+      int capacity = Math.max (numPostings, this.docids.length * 2);
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+      this.posOffsets = Arrays.copyOf (this.posOffsets, capacity + 1);
+    }
+
+    if (numPositions > this.positions.length) {
+      int capacity = Math.max (numPositions, this.positions.length * 2);
+      this.positions = Arrays.copyOf (this.positions, capacity);
     }
   }
 
@@ -148,33 +215,152 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations The positions where the term occurs, in ascending order.
+   *  @param tf The number of valid entries in locations.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
+  public boolean appendPosting (int docid, int[] locations, int tf) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    System.arraycopy (locations, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.posOffsets[this.df] = this.ctf;
+    this.blockMaxTf = null;
     return true;
   }
 
+  /**
+   *  Get an inverted list that one query operator can iterate over.
+   *  Inverted lists that decode their postings into buffers return a
+   *  view with buffers of its own, so that shared lists can be used
+   *  by several query operators at once.
+   *  @return The inverted list to iterate over.
+   */
+  public InvList view () {
+    return this;
+  }
+
+  /**
+   *  Get the largest tf of each block of BlockMaxIndex.BLOCK_SIZE
+   *  postings.  They are computed when they are first needed and
+   *  kept with the list, so a cached list computes them once.
+   *  @return The last docid and largest tf of each block.
+   */
+  public BlockMaxIndex.Blocks getBlockMaxTf () {
+
+    BlockMaxIndex.Blocks blocks = this.blockMaxTf;
+
+    if (blocks == null) {
+      int numBlocks = (this.df + BlockMaxIndex.BLOCK_SIZE - 1) / BlockMaxIndex.BLOCK_SIZE;
+      int[] lastDocid = new int[numBlocks];
+      double[] max = new double[numBlocks];
+
+      for (int n = 0; n < this.df; n++) {
+        int block = n / BlockMaxIndex.BLOCK_SIZE;
+        lastDocid[block] = this.getDocid (n);
+        max[block] = Math.max (max[block], this.getTf (n));
+      }
+
+      blocks = new BlockMaxIndex.Blocks (lastDocid, max);
+      this.blockMaxTf = blocks;
+    }
+
+    return blocks;
+  }
+
+  /**
+   *  Find the first posting, starting at index from, whose document
+   *  id is at least docid.  After a short linear scan this is an
+   *  exponential (galloping) search followed by a binary search, so
+   *  skipping over k postings costs O(log k) rather than O(k).
+   *  @param from The index of the posting to start from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid (int from, int docid) {
+
+    if ((from >= this.df) || (this.getDocid (from) >= docid))
+      return from;
+
+    //  Short skips are the common case in a merge.  A linear scan
+    //  finds them with fewer mispredicted branches than a search.
+
+    int end = Math.min (from + LINEAR_SCAN, this.df);
+
+    for (int n = from + 1; n < end; n++) {
+      if (this.getDocid (n) >= docid)
+        return n;
+    }
+
+    //  Gallop until a posting that is not before docid is bracketed.
+    //  Invariant:  getDocid(lo) < docid, and hi == df or
+    //  getDocid(hi) >= docid once the loop exits.
+
+    int lo = end - 1;
+    int hi = end;
+    int step = 1;
+
+    while ((hi < this.df) && (this.getDocid (hi) < docid)) {
+      lo = hi;
+      step <<= 1;
+      hi = (int) Math.min ((long) lo + step, (long) this.df);
+    }
+
+    //  Binary search in (lo, hi].
+
+    while (lo + 1 < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.getDocid (mid) < docid) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return hi;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Copy the docids and tfs of consecutive postings into buffers.
+   *  @param from The index of the first posting.
+   *  @param n The number of postings, which must be in the list.
+   *  @param docids Receives the docids.
+   *  @param tfs Receives the tfs.
+   */
+  public void getPostings (int from, int n, int[] docids, int[] tfs) {
+    System.arraycopy (this.docids, from, docids, 0, n);
+    System.arraycopy (this.tfs, from, tfs, 0, n);
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location, 0 &lt;= j &lt; tf.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.posOffsets[n] + j];
   }
 
   /**
@@ -183,7 +369,20 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Estimate the memory used by the inverted list.
+   *  @return The approximate size of the inverted list in bytes.
+   */
+  public long ramBytesUsed () {
+
+    //  Object headers and fields, plus four array headers.
+
+    return 64L + 4 * 16L +
+      4L * (this.docids.length + this.tfs.length +
+            this.posOffsets.length + this.positions.length);
   }
 
   /**
@@ -194,11 +393,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.getTf(i); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,287 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *  A process-wide cache of inverted lists, keyed by (term, field), so
+ *  that queries that share terms don't read the same inverted list
+ *  from the index again.  The cache holds at most a configurable
+ *  number of bytes.
+ *  <p>
+ *  Admission uses TinyLFU.  A small count-min sketch estimates how
+ *  often each (term, field) has been requested recently.  A new list
+ *  is admitted if it fits in the free space.  Otherwise it replaces
+ *  the least-recently used lists only if it has been requested more
+ *  often than each of them, so a one-off request for a huge inverted
+ *  list can't flush the lists that are used over and over.
+ *  </p><p>
+ *  Optionally, lists are compressed ({@link InvListCompressed}) when
+ *  they are read, which fits several times as many lists in the same
+ *  number of bytes at the cost of decoding them during iteration.
+ *  </p><p>
+ *  Cached inverted lists are shared by every query operator that
+ *  uses them, so they must not be modified.  Lookups don't lock.
+ *  Admission and eviction are serialized.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The maximum number of bytes of inverted lists to cache.
+   */
+  private final long maxBytes;
+
+  /**
+   *  Whether inverted lists are compressed before they are cached.
+   */
+  private final boolean compress;
+
+  /**
+   *  The number of bytes of inverted lists that are cached now.
+   */
+  private final AtomicLong bytes = new AtomicLong ();
+
+  /**
+   *  A logical clock that records when each entry was last used.
+   */
+  private final AtomicLong clock = new AtomicLong ();
+
+  private final ConcurrentHashMap<String, Entry> entries =
+    new ConcurrentHashMap<String, Entry> ();
+
+  private final FrequencySketch sketch;
+
+  //  Counters that are reported by printStatistics.
+
+  private final AtomicLong hits = new AtomicLong ();
+  private final AtomicLong misses = new AtomicLong ();
+  private final AtomicLong evictions = new AtomicLong ();
+  private final AtomicLong rejections = new AtomicLong ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A cached inverted list.
+   */
+  private static class Entry {
+    final String key;
+    final InvList list;
+    final long size;
+    volatile long lastUsed;
+
+    Entry (String key, InvList list, long size, long lastUsed) {
+      this.key = key;
+      this.list = list;
+      this.size = size;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  /**
+   *  A count-min sketch of recent request frequencies.  Counters
+   *  saturate at 15, and all counters are halved after a sample of
+   *  requests, so the estimates favor recent popularity.
+   */
+  private static class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS =
+      { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+    private final int[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int requests = 0;
+
+    FrequencySketch (int width) {
+      int w = Integer.highestOneBit (Math.max (width, 64) - 1) << 1;
+      this.counters = new int[DEPTH * w];
+      this.mask = w - 1;
+      this.sampleSize = 10 * w;
+    }
+
+    private int index (int hash, int row) {
+      int h = hash * SEEDS[row];
+      h ^= h >>> 16;
+      return row * (this.mask + 1) + (h & this.mask);
+    }
+
+    synchronized int increment (String key) {
+      int hash = key.hashCode ();
+      int estimate = MAX_COUNT;
+
+      for (int row = 0; row < DEPTH; row++) {
+        int i = this.index (hash, row);
+
+        if (this.counters[i] < MAX_COUNT) {
+          this.counters[i] ++;
+        }
+        estimate = Math.min (estimate, this.counters[i]);
+      }
+
+      if (++ this.requests >= this.sampleSize) {
+        for (int i = 0; i < this.counters.length; i++) {
+          this.counters[i] >>>= 1;
+        }
+        this.requests /= 2;
+      }
+
+      return estimate;
+    }
+
+    synchronized int frequency (String key) {
+      int hash = key.hashCode ();
+      int estimate = MAX_COUNT;
+
+      for (int row = 0; row < DEPTH; row++) {
+        estimate = Math.min (estimate, this.counters[this.index (hash, row)]);
+      }
+
+      return estimate;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty cache.
+   *  @param maxBytes The maximum number of bytes of inverted lists to cache.
+   *  @param compress Whether to compress inverted lists before caching them.
+   */
+  public InvListCache (long maxBytes, boolean compress) {
+
+    this.maxBytes = maxBytes;
+    this.compress = compress;
+
+    //  Size the sketch for roughly one counter per 4KB of budget.
+
+    this.sketch = new FrequencySketch
+      ((int) Math.min (1 << 20, Math.max (1024, maxBytes / 4096)));
+  }
+
+  /**
+   *  Get an inverted list, from the cache if possible, otherwise
+   *  from the index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list.  It must not be modified, and it must
+   *  be iterated over through a {@link InvList#view}.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList get (String termString, String fieldString)
+    throws IOException {
+
+    //  Field names don't contain ':', so the key is unambiguous.
+
+    String key = fieldString + ":" + termString;
+    int frequency = this.sketch.increment (key);
+    Entry e = this.entries.get (key);
+
+    if (e != null) {
+      e.lastUsed = this.clock.incrementAndGet ();
+      this.hits.incrementAndGet ();
+      return e.list;
+    }
+
+    this.misses.incrementAndGet ();
+
+    InvList list = Idx.readInvList (termString, fieldString);
+
+    //  Mapped lists are not on the heap, so there is nothing to gain
+    //  by compressing them.
+
+    if (this.compress && (list.df > 0) && ! (list instanceof InvListMapped)) {
+      list = new InvListCompressed (list);
+    }
+
+    this.admit (key, list, frequency);
+    return list;
+  }
+
+  /**
+   *  Decide whether to cache an inverted list that was just read
+   *  from the index, and evict other lists to make room for it.
+   *  @param key The cache key of the inverted list.
+   *  @param list The inverted list.
+   *  @param frequency The sketch's estimate of the list's frequency.
+   */
+  private synchronized void admit (String key, InvList list, int frequency) {
+
+    if (this.entries.containsKey (key)) {	// Another reader cached it.
+      return;
+    }
+
+    long size = list.ramBytesUsed ();
+    long needed = this.bytes.get () + size - this.maxBytes;
+
+    if (size > this.maxBytes) {
+      this.rejections.incrementAndGet ();
+      return;
+    }
+
+    //  If the list doesn't fit, the least-recently used entries are
+    //  the eviction candidates.  The new list must be more popular
+    //  than every one of them.
+
+    List<Entry> victims = new ArrayList<Entry> ();
+
+    if (needed > 0) {
+      Entry[] lru = this.entries.values ().toArray (new Entry[0]);
+
+      Arrays.sort (lru, new Comparator<Entry> () {
+        public int compare (Entry e1, Entry e2) {
+          return Long.compare (e1.lastUsed, e2.lastUsed);
+        }
+      });
+
+      long freed = 0;
+
+      for (int i = 0; (i < lru.length) && (freed < needed); i++) {
+        if (this.sketch.frequency (lru[i].key) >= frequency) {
+          this.rejections.incrementAndGet ();
+          return;
+        }
+        victims.add (lru[i]);
+        freed += lru[i].size;
+      }
+    }
+
+    for (Entry victim : victims) {
+      this.entries.remove (victim.key);
+      this.bytes.addAndGet (- victim.size);
+      this.evictions.incrementAndGet ();
+    }
+
+    this.entries.put (key, new Entry (key, list, size,
+                                      this.clock.incrementAndGet ()));
+    this.bytes.addAndGet (size);
+  }
+
+  /**
+   *  Print the cache's hit, miss, eviction and size counters.
+   */
+  public void printStatistics () {
+
+    long h = this.hits.get ();
+    long m = this.misses.get ();
+
+    System.out.println ("Posting list cache:  " +
+                        h + " hits, " +
+                        m + " misses (" +
+                        ((h + m > 0) ? (100 * h / (h + m)) : 0) + "% hits), " +
+                        this.evictions.get () + " evictions, " +
+                        this.rejections.get () + " rejected");
+    System.out.println ("Posting list cache:  " +
+                        this.entries.size () + " lists, " +
+                        (this.bytes.get () / 1024) + " KB of " +
+                        (this.maxBytes / 1024) + " KB");
+  }
+}
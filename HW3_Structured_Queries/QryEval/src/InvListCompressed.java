@@ -0,0 +1,449 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A read-only inverted list that is stored compressed, so that more
+ *  inverted lists fit in the posting list cache.
+ *  <p>
+ *  Postings are grouped into blocks of 128.  In each block, the docid
+ *  gaps and the term frequencies are bit-packed with a per-block bit
+ *  width (frame of reference).  Positions are stored as gaps from the
+ *  previous position in the same document, variable-byte encoded.
+ *  The last docid of every block is kept uncompressed, so findDocid
+ *  skips whole blocks without decoding them.
+ *  </p><p>
+ *  Decoding happens one block at a time as the docIterator moves
+ *  forward; the positions of a block are only decoded if a locIterator
+ *  asks for them.  The encoded data is immutable and may be shared,
+ *  but the decode buffers are not, so each query operator must use
+ *  its own {@link #view}.
+ *  </p>
+ */
+public class InvListCompressed extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  private static final int BLOCK_SHIFT = 7;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  //  The encoded postings.  These arrays are shared by all views.
+
+  /**
+   *  The last docid in each block.
+   */
+  private final int[] blockLastDocid;
+
+  /**
+   *  The index in packed of each block's header word, plus a final
+   *  entry.  The header holds the bit widths of the docid gaps (bits
+   *  0-7) and of tf-1 (bits 8-15).  The packed docid gaps and then
+   *  the packed tfs follow it.
+   */
+  private final int[] blockStart;
+
+  /**
+   *  The bit-packed docid gaps and tfs.
+   */
+  private final int[] packed;
+
+  /**
+   *  The index in posBytes of each block's positions, plus a final
+   *  entry.
+   */
+  private final int[] blockPosStart;
+
+  /**
+   *  The variable-byte encoded position gaps.
+   */
+  private final byte[] posBytes;
+
+  //  The decode buffers of this view.
+
+  private int docBlock = -1;
+  private int[] docBuf;
+  private int[] tfBuf;
+
+  private int posBlock = -1;
+  private int[] posOffBuf;
+  private int[] posBuf;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compress an inverted list.
+   *  @param list The inverted list to compress.
+   */
+  public InvListCompressed (InvList list) {
+
+    super (list.field, list.df, list.ctf);
+
+    int numBlocks = (this.df + BLOCK_MASK) >>> BLOCK_SHIFT;
+
+    this.blockLastDocid = new int[numBlocks];
+    this.blockStart = new int[numBlocks + 1];
+    this.blockPosStart = new int[numBlocks + 1];
+
+    int[] words = new int[16];
+    long bitPos = 0;
+    ByteArrayOutputStream posOut = new ByteArrayOutputStream ();
+    int prevDocid = -1;
+
+    for (int b = 0; b < numBlocks; b++) {
+      int first = b << BLOCK_SHIFT;
+      int n = Math.min (BLOCK_SIZE, this.df - first);
+
+      //  Find the bit widths of the block.
+
+      int maxGap = 0;
+      int maxTf = 0;
+
+      for (int i = 0, d = prevDocid; i < n; i++) {
+        int docid = list.getDocid (first + i);
+        maxGap |= docid - d - 1;
+        maxTf |= list.getTf (first + i) - 1;
+        d = docid;
+      }
+
+      int docBits = 32 - Integer.numberOfLeadingZeros (maxGap);
+      int tfBits = 32 - Integer.numberOfLeadingZeros (maxTf);
+
+      //  Blocks start on a word boundary.
+
+      int start = (int) ((bitPos + 31) >>> 5);
+      long end = ((long) start + 1) * 32 + (long) n * (docBits + tfBits);
+
+      if ((end >>> 5) + 2 > words.length) {
+        words = Arrays.copyOf (words,
+                               (int) Math.max (words.length * 2, (end >>> 5) + 2));
+      }
+
+      this.blockStart[b] = start;
+      words[start] = docBits | (tfBits << 8);
+      bitPos = ((long) start + 1) * 32;
+
+      for (int i = 0; i < n; i++) {
+        int docid = list.getDocid (first + i);
+        pack (words, bitPos, docid - prevDocid - 1);
+        bitPos += docBits;
+        prevDocid = docid;
+      }
+
+      for (int i = 0; i < n; i++) {
+        pack (words, bitPos, list.getTf (first + i) - 1);
+        bitPos += tfBits;
+      }
+
+      this.blockLastDocid[b] = prevDocid;
+
+      //  Positions.
+
+      this.blockPosStart[b] = posOut.size ();
+
+      for (int i = 0; i < n; i++) {
+        int tf = list.getTf (first + i);
+        int prevPosition = 0;
+
+        for (int j = 0; j < tf; j++) {
+          int position = list.getPosition (first + i, j);
+          writeVByte (posOut, position - prevPosition);
+          prevPosition = position;
+        }
+      }
+    }
+
+    int numWords = (int) ((bitPos + 31) >>> 5);
+
+    this.blockStart[numBlocks] = numWords;
+    this.blockPosStart[numBlocks] = posOut.size ();
+    this.packed = Arrays.copyOf (words, numWords);
+    this.posBytes = posOut.toByteArray ();
+    this.blockMaxTf = list.getBlockMaxTf ();
+  }
+
+  /**
+   *  Create a view that shares another list's encoded postings.
+   *  @param list The compressed inverted list.
+   */
+  private InvListCompressed (InvListCompressed list) {
+    super (list.field, list.df, list.ctf);
+    this.blockLastDocid = list.blockLastDocid;
+    this.blockStart = list.blockStart;
+    this.packed = list.packed;
+    this.blockPosStart = list.blockPosStart;
+    this.posBytes = list.posBytes;
+    this.blockMaxTf = list.blockMaxTf;
+  }
+
+  /**
+   *  Get a view of the inverted list with its own decode buffers.
+   *  @return The view.
+   */
+  public InvList view () {
+    return new InvListCompressed (this);
+  }
+
+  /**
+   *  Compressed inverted lists are read-only.
+   *  @throws UnsupportedOperationException Always.
+   */
+  public boolean appendPosting (int docid, int[] locations, int tf) {
+    throw new UnsupportedOperationException
+      ("A compressed inverted list can't be modified.");
+  }
+
+  /**
+   *  Store the low bits of a value at a bit position.  The bits above
+   *  the value's bit width must be zero.
+   */
+  private static void pack (int[] words, long bitPos, int value) {
+    int word = (int) (bitPos >>> 5);
+    int shift = (int) bitPos & 31;
+
+    words[word] |= value << shift;
+
+    if (shift != 0) {
+      words[word + 1] |= value >>> (32 - shift);
+    }
+  }
+
+  private static void writeVByte (ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write (value);
+  }
+
+  /**
+   *  Decode the docids and tfs of a block into the decode buffers.
+   *  @param b The block.
+   */
+  private void decodeBlock (int b) {
+
+    if (this.docBuf == null) {
+      this.docBuf = new int[BLOCK_SIZE];
+      this.tfBuf = new int[BLOCK_SIZE];
+    }
+
+    int n = Math.min (BLOCK_SIZE, this.df - (b << BLOCK_SHIFT));
+    int start = this.blockStart[b];
+    int docBits = this.packed[start] & 0xff;
+    int tfBits = (this.packed[start] >>> 8) & 0xff;
+    long docMask = (1L << docBits) - 1;
+    long tfMask = (1L << tfBits) - 1;
+    int docid = (b == 0) ? -1 : this.blockLastDocid[b - 1];
+
+    //  Values are read from a 64-bit accumulator that is refilled a
+    //  word at a time.  A bit width of 0 means that every value is 0,
+    //  so no words are read.
+
+    int[] packed = this.packed;
+    int[] docBuf = this.docBuf;
+    int[] tfBuf = this.tfBuf;
+    int word = start + 1;
+    long acc = 0;
+    int accBits = 0;
+
+    for (int i = 0; i < n; i++) {
+      if (accBits < docBits) {
+        acc |= (packed[word++] & 0xffffffffL) << accBits;
+        accBits += 32;
+      }
+      docid += (int) (acc & docMask) + 1;
+      docBuf[i] = docid;
+      acc >>>= docBits;
+      accBits -= docBits;
+    }
+
+    for (int i = 0; i < n; i++) {
+      if (accBits < tfBits) {
+        acc |= (packed[word++] & 0xffffffffL) << accBits;
+        accBits += 32;
+      }
+      tfBuf[i] = (int) (acc & tfMask) + 1;
+      acc >>>= tfBits;
+      accBits -= tfBits;
+    }
+
+    this.docBlock = b;
+  }
+
+  /**
+   *  Decode the positions of a block into the decode buffers.
+   *  @param b The block.
+   */
+  private void decodePositions (int b) {
+
+    if (b != this.docBlock)
+      this.decodeBlock (b);
+
+    int n = Math.min (BLOCK_SIZE, this.df - (b << BLOCK_SHIFT));
+    int numPositions = 0;
+
+    for (int i = 0; i < n; i++)
+      numPositions += this.tfBuf[i];
+
+    if (this.posOffBuf == null) {
+      this.posOffBuf = new int[BLOCK_SIZE + 1];
+    }
+
+    if ((this.posBuf == null) || (this.posBuf.length < numPositions)) {
+      this.posBuf = new int[Math.max (numPositions, 2 * BLOCK_SIZE)];
+    }
+
+    int p = this.blockPosStart[b];
+    int k = 0;
+
+    for (int i = 0; i < n; i++) {
+      int position = 0;
+
+      this.posOffBuf[i] = k;
+
+      for (int j = 0; j < this.tfBuf[i]; j++) {
+        int gap = 0;
+        int shift = 0;
+        byte v;
+
+        do {
+          v = this.posBytes[p++];
+          gap |= (v & 0x7f) << shift;
+          shift += 7;
+        } while (v < 0);
+
+        position += gap;
+        this.posBuf[k++] = position;
+      }
+    }
+
+    this.posOffBuf[n] = k;
+    this.posBlock = b;
+  }
+
+  /**
+   *  Find the first posting, starting at index from, whose document
+   *  id is at least docid.  Blocks that end before docid are skipped
+   *  by a binary search of the block last docids, without decoding.
+   *  @param from The index of the posting to start from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid (int from, int docid) {
+
+    if (from >= this.df)
+      return from;
+
+    int b = from >>> BLOCK_SHIFT;
+
+    if (this.blockLastDocid[b] < docid) {
+
+      //  Binary search in (b, numBlocks] for the first block whose
+      //  last docid is at least docid.
+
+      int lo = b;
+      int hi = this.blockLastDocid.length;
+
+      while (lo + 1 < hi) {
+        int mid = (lo + hi) >>> 1;
+
+        if (this.blockLastDocid[mid] < docid) {
+          lo = mid;
+        } else {
+          hi = mid;
+        }
+      }
+
+      if (hi == this.blockLastDocid.length)
+        return this.df;
+
+      b = hi;
+      from = b << BLOCK_SHIFT;
+    }
+
+    if (b != this.docBlock)
+      this.decodeBlock (b);
+
+    //  The block's last docid is at least docid, so the scan stops
+    //  inside the block.
+
+    int i = from & BLOCK_MASK;
+
+    while (this.docBuf[i] < docid)
+      i ++;
+
+    return (b << BLOCK_SHIFT) + i;
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid (int n) {
+    int b = n >>> BLOCK_SHIFT;
+
+    if (b != this.docBlock)
+      this.decodeBlock (b);
+
+    return this.docBuf[n & BLOCK_MASK];
+  }
+
+  /**
+   *  Copy the docids and tfs of consecutive postings into buffers.
+   *  @param from The index of the first posting.
+   *  @param n The number of postings, which must be in the list.
+   *  @param docids Receives the docids.
+   *  @param tfs Receives the tfs.
+   */
+  public void getPostings (int from, int n, int[] docids, int[] tfs) {
+    for (int i = 0; i < n; i++) {
+      docids[i] = this.getDocid (from + i);
+      tfs[i] = this.getTf (from + i);
+    }
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location, 0 &lt;= j &lt; tf.
+   *  @return The location.
+   */
+  public int getPosition (int n, int j) {
+    int b = n >>> BLOCK_SHIFT;
+
+    if (b != this.posBlock)
+      this.decodePositions (b);
+
+    return this.posBuf[this.posOffBuf[n & BLOCK_MASK] + j];
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf (int n) {
+    int b = n >>> BLOCK_SHIFT;
+
+    if (b != this.docBlock)
+      this.decodeBlock (b);
+
+    return this.tfBuf[n & BLOCK_MASK];
+  }
+
+  /**
+   *  Estimate the memory used by the encoded postings.  The decode
+   *  buffers belong to views, so they are not counted.
+   *  @return The approximate size of the inverted list in bytes.
+   */
+  public long ramBytesUsed () {
+    return 64L + 5 * 16L +
+      4L * (this.blockLastDocid.length + this.blockStart.length +
+            this.packed.length + this.blockPosStart.length) +
+      this.posBytes.length;
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.nio.*;
+
+/**
+ *  A read-only inverted list that is served directly from the
+ *  memory-mapped columns of a {@link PostingsSnapshot}.  Nothing is
+ *  copied; each access reads the mapped files, so the operating
+ *  system's page cache holds the postings and can share them with
+ *  other processes.
+ */
+public class InvListMapped extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The field's docid column.  Posting n of this list is at index
+   *  postingStart+n.
+   */
+  private final IntBuffer docs;
+
+  /**
+   *  The field's position offset column.  It has one more entry than
+   *  the docid column, so offs[i+1]-offs[i] is the tf of posting i.
+   */
+  private final IntBuffer offs;
+
+  /**
+   *  The field's positions column.
+   */
+  private final IntBuffer pos;
+
+  private final int postingStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a view of one term's postings in a snapshot.
+   *  @param fieldString The field that the term occurs in.
+   *  @param df The number of postings.
+   *  @param ctf The number of positions.
+   *  @param docs The field's docid column.
+   *  @param offs The field's position offset column.
+   *  @param pos The field's positions column.
+   *  @param postingStart The index of the term's first posting.
+   */
+  InvListMapped (String fieldString, int df, int ctf,
+                 IntBuffer docs, IntBuffer offs, IntBuffer pos,
+                 int postingStart) {
+    super (fieldString, df, ctf);
+    this.docs = docs;
+    this.offs = offs;
+    this.pos = pos;
+    this.postingStart = postingStart;
+  }
+
+  /**
+   *  Mapped inverted lists are read-only.
+   *  @throws UnsupportedOperationException Always.
+   */
+  public boolean appendPosting (int docid, int[] locations, int tf) {
+    throw new UnsupportedOperationException
+      ("A mapped inverted list can't be modified.");
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid (int n) {
+    return this.docs.get (this.postingStart + n);
+  }
+
+  /**
+   *  Copy the docids and tfs of consecutive postings into buffers.
+   *  @param from The index of the first posting.
+   *  @param n The number of postings, which must be in the list.
+   *  @param docids Receives the docids.
+   *  @param tfs Receives the tfs.
+   */
+  public void getPostings (int from, int n, int[] docids, int[] tfs) {
+    for (int i = 0; i < n; i++) {
+      docids[i] = this.getDocid (from + i);
+      tfs[i] = this.getTf (from + i);
+    }
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location, 0 &lt;= j &lt; tf.
+   *  @return The location.
+   */
+  public int getPosition (int n, int j) {
+    return this.pos.get (this.offs.get (this.postingStart + n) + j);
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf (int n) {
+    int i = this.postingStart + n;
+    return this.offs.get (i + 1) - this.offs.get (i);
+  }
+
+  /**
+   *  The postings are in the page cache, not on the heap, so only
+   *  the object itself counts.
+   *  @return The approximate size of the inverted list in bytes.
+   */
+  public long ramBytesUsed () {
+    return 64L;
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  MaxScore evaluation of a BM25 #SUM of #SCORE operators into a
+ *  bounded ScoreList.  The results are the same as exhaustive
+ *  evaluation, but documents that can't enter the top k are not
+ *  fully scored.
+ *  <p>
+ *  Each argument has an upper bound on its score.  The arguments are
+ *  ordered by bound, and the non-essential arguments are the longest
+ *  prefix whose bounds sum to less than the current threshold, the
+ *  score of the worst document in the full ScoreList.  A document
+ *  that matches only non-essential arguments can't enter the list, so
+ *  candidates come from the essential arguments alone.  Non-essential
+ *  arguments are advanced to a candidate with docIteratorAdvanceTo,
+ *  largest bound first, and only while the candidate's score plus the
+ *  remaining bounds can still reach the threshold.
+ *  </p><p>
+ *  A document that is scored sums its argument scores in argument
+ *  order, as QrySopSum does, so its score is bit-for-bit the same.
+ *  Bound comparisons allow a small relative slack for rounding, so
+ *  pruning is conservative.
+ *  </p>
+ */
+public class MaxScore {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Whether a query can be evaluated by MaxScore:  A BM25 #SUM
+   *  whose arguments are all #SCORE operators.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated by MaxScore.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! (q instanceof QrySopSum) || ! (r instanceof RetrievalModelBM25))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query.
+   *  @param q The query.  See canEvaluate.
+   *  @param r The retrieval model.
+   *  @param result A bounded ScoreList that receives the results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, ScoreList result)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] args = new QrySopScore[n];
+    final double[] bounds = new double[n];
+    Integer[] byBound = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      bounds[i] = args[i].getUpperBoundBM25 (r);
+      byBound[i] = i;
+    }
+
+    //  Order the arguments by bound.  cumBound[i] is the sum of the
+    //  bounds of the arguments in order[0..i].
+
+    Arrays.sort (byBound, new Comparator<Integer> () {
+      public int compare (Integer i1, Integer i2) {
+        return Double.compare (bounds[i1], bounds[i2]);
+      }
+    });
+
+    QrySopScore[] ordered = new QrySopScore[n];
+    int[] argIndex = new int[n];
+    double[] cumBound = new double[n];
+    double sum = 0.0;
+
+    for (int i = 0; i < n; i++) {
+      argIndex[i] = byBound[i];
+      ordered[i] = args[argIndex[i]];
+      sum += bounds[argIndex[i]];
+      cumBound[i] = sum;
+    }
+
+    double[] argScores = new double[n];
+    boolean[] argMatched = new boolean[n];
+    double threshold = Double.NEGATIVE_INFINITY;
+    int firstEssential = 0;
+
+    while (true) {
+
+      //  The candidate is the smallest docid of the essential arguments.
+
+      int docid = Qry.INVALID_DOCID;
+
+      for (int i = firstEssential; i < n; i++) {
+        if (ordered[i].docIteratorHasMatch (r)) {
+          int docid_i = ordered[i].docIteratorGetMatch ();
+
+          if ((docid == Qry.INVALID_DOCID) || (docid_i < docid))
+            docid = docid_i;
+        }
+      }
+
+      if (docid == Qry.INVALID_DOCID)
+        break;
+
+      //  Score the essential arguments that match.
+
+      Arrays.fill (argMatched, false);
+      double partial = 0.0;
+
+      for (int i = firstEssential; i < n; i++) {
+        if (ordered[i].docIteratorHasMatch (r) &&
+            (ordered[i].docIteratorGetMatch () == docid)) {
+          double s = ordered[i].getScore (r);
+          argScores[argIndex[i]] = s;
+          argMatched[argIndex[i]] = true;
+          partial += s;
+        }
+      }
+
+      //  Add the non-essential arguments, largest bound first, while
+      //  the document can still reach the threshold.
+
+      boolean pruned = false;
+
+      for (int i = firstEssential - 1; i >= 0; i--) {
+        if ((partial + cumBound[i]) * (1.0 + ScoreList.BOUND_SLACK) <
+            threshold) {
+          pruned = true;
+          break;
+        }
+
+        ordered[i].docIteratorAdvanceTo (docid);
+
+        if (ordered[i].docIteratorHasMatch (r) &&
+            (ordered[i].docIteratorGetMatch () == docid)) {
+          double s = ordered[i].getScore (r);
+          argScores[argIndex[i]] = s;
+          argMatched[argIndex[i]] = true;
+          partial += s;
+        }
+      }
+
+      if (! pruned) {
+        double score = 0.0;
+
+        for (int i = 0; i < n; i++) {
+          if (argMatched[i])
+            score += argScores[i];
+        }
+
+        result.add (docid, score);
+        threshold = result.getThreshold ();
+
+        while ((firstEssential < n) &&
+               (cumBound[firstEssential] * (1.0 + ScoreList.BOUND_SLACK) <
+                threshold)) {
+          firstEssential ++;
+        }
+      }
+
+      //  Move the essential arguments past the candidate.
+
+      for (int i = firstEssential; i < n; i++) {
+        if (ordered[i].docIteratorHasMatch (r) &&
+            (ordered[i].docIteratorGetMatch () == docid)) {
+          ordered[i].docIteratorAdvancePast (docid);
+        }
+      }
+    }
+  }
+}
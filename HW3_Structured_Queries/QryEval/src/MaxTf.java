@@ -0,0 +1,201 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  Max-tf evaluation of a RankedBoolean #OR or #AND of #SCORE
+ *  operators into a bounded ScoreList.  The results are the same as
+ *  exhaustive evaluation.
+ *  <p>
+ *  A RankedBoolean #SCORE is the term's tf, so each inverted list's
+ *  block maxima (see {@link InvList#getBlockMaxTf}) bound the scores
+ *  of the documents in each block.  The threshold is the score of
+ *  the worst document in the full ScoreList.
+ *  </p><p>
+ *  An #OR score is the largest tf of the arguments that match.  A
+ *  document that reaches the threshold has an argument whose tf
+ *  reaches it, so each argument skips the blocks whose bound is below
+ *  the threshold, and an argument whose whole list is below it is
+ *  dropped.  Evaluation stops when every argument is dropped.  A
+ *  candidate's score is the largest tf of the arguments at its docid;
+ *  an argument that skipped it has a smaller tf, so that only changes
+ *  the score of a document that can't enter the list.
+ *  </p><p>
+ *  An #AND score is the smallest tf of its arguments, so the #AND
+ *  skips a block of any argument whose bound is below the threshold,
+ *  and evaluation stops when any argument's whole list is below it.
+ *  </p><p>
+ *  Comparisons are strict, because a document whose score equals the
+ *  threshold may still enter the list by external id.
+ *  </p>
+ */
+public class MaxTf {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Whether a query can be evaluated by max-tf pruning:  A
+   *  RankedBoolean #OR or #AND whose arguments are all #SCORE
+   *  operators.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated by max-tf pruning.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! (q instanceof QrySopOr || q instanceof QrySopAnd) ||
+        ! (r instanceof RetrievalModelRankedBoolean)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query.
+   *  @param q The query.  See canEvaluate.
+   *  @param r The retrieval model.
+   *  @param result A bounded ScoreList that receives the results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, ScoreList result)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] args = new QrySopScore[n];
+    BlockMaxIndex.Blocks[] blocks = new BlockMaxIndex.Blocks[n];
+    double[] bounds = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      blocks[i] = args[i].getBlockUpperBoundsRankedBoolean ();
+
+      for (int j = 0; j < blocks[i].max.length; j++)
+        bounds[i] = Math.max (bounds[i], blocks[i].max[j]);
+    }
+
+    if (q instanceof QrySopOr) {
+      evaluateOr (args, blocks, bounds, r, result);
+    } else {
+      evaluateAnd (q, args, blocks, bounds, r, result);
+    }
+  }
+
+  /**
+   *  Evaluate an #OR.
+   */
+  private static void evaluateOr (QrySopScore[] args,
+                                  BlockMaxIndex.Blocks[] blocks,
+                                  double[] bounds,
+                                  RetrievalModel r,
+                                  ScoreList result)
+    throws IOException {
+
+    int n = args.length;
+    int[] block = new int[n];
+    double threshold = Double.NEGATIVE_INFINITY;
+
+    while (true) {
+
+      //  The candidate is the smallest docid of the arguments that
+      //  can reach the threshold, after they skip their low blocks.
+
+      int docid = Integer.MAX_VALUE;
+
+      for (int i = 0; i < n; i++) {
+        if (bounds[i] < threshold)
+          continue;
+
+        while (args[i].docIteratorHasMatch (r)) {
+          int docid_i = args[i].docIteratorGetMatch ();
+          block[i] = blocks[i].find (block[i], docid_i);
+
+          if ((block[i] < blocks[i].max.length) &&
+              (blocks[i].max[block[i]] < threshold)) {
+            skipBlock (args[i], blocks[i], block[i]);
+          } else {
+            docid = Math.min (docid, docid_i);
+            break;
+          }
+        }
+      }
+
+      if (docid == Integer.MAX_VALUE)
+        break;
+
+      //  Score the candidate as QrySopOr does, from the arguments at
+      //  its docid, and move them past it.
+
+      double score = -1.0;
+
+      for (int i = 0; i < n; i++) {
+        if (args[i].docIteratorHasMatch (r) &&
+            (args[i].docIteratorGetMatch () == docid)) {
+          score = Math.max (score, args[i].getScore (r));
+          args[i].docIteratorAdvancePast (docid);
+        }
+      }
+
+      result.add (docid, score);
+      threshold = result.getThreshold ();
+    }
+  }
+
+  /**
+   *  Evaluate an #AND.
+   */
+  private static void evaluateAnd (Qry q,
+                                   QrySopScore[] args,
+                                   BlockMaxIndex.Blocks[] blocks,
+                                   double[] bounds,
+                                   RetrievalModel r,
+                                   ScoreList result)
+    throws IOException {
+
+    int n = args.length;
+    int[] block = new int[n];
+    double minBound = Double.POSITIVE_INFINITY;
+    double threshold = Double.NEGATIVE_INFINITY;
+
+    for (int i = 0; i < n; i++)
+      minBound = Math.min (minBound, bounds[i]);
+
+    while ((minBound >= threshold) && q.docIteratorHasMatch (r)) {
+      int docid = q.docIteratorGetMatch ();
+      boolean skipped = false;
+
+      for (int i = 0; i < n; i++) {
+        block[i] = blocks[i].find (block[i], docid);
+
+        if ((block[i] < blocks[i].max.length) &&
+            (blocks[i].max[block[i]] < threshold)) {
+          skipBlock (args[i], blocks[i], block[i]);
+          skipped = true;
+          break;
+        }
+      }
+
+      if (skipped)
+        continue;
+
+      result.add (docid, ((QrySop) q).getScore (r));
+      threshold = result.getThreshold ();
+      q.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Move an argument past the end of a block.
+   */
+  private static void skipBlock (Qry q, BlockMaxIndex.Blocks blocks, int block) {
+    int last = blocks.lastDocid[block];
+    q.docIteratorAdvanceTo ((last == Integer.MAX_VALUE) ? last : last + 1);
+  }
+}
@@ -0,0 +1,804 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Microbenchmarks for the inverted list and query operator code
+ *  paths.  The benchmarks use synthetic inverted lists, so they don't
+ *  need an index.  Run it to see a simple usage message.
+ */
+public class PostingsBenchmark {
+
+  static String usage =
+    "Usage:  java PostingsBenchmark BENCHMARK [options]\n\n" +
+    "where BENCHMARK is one of\n" +
+    "    intersect [RARE_DF COMMON_DF NUM_DOCS]\n" +
+    "\t\t\tBoolean #AND of a rare and a common term, with\n" +
+    "\t\t\tlinear and galloping docIteratorAdvanceTo\n" +
+    "    compress [DF NUM_DOCS]\n" +
+    "\t\t\tSize, scan and intersect speed of plain and\n" +
+    "\t\t\tcompressed inverted lists\n" +
+    "    score [DF NUM_DOCS]\n" +
+    "\t\t\tBM25 and Indri #SCORE with per-document model\n" +
+    "\t\t\tdispatch, with the bound scorers, and with their\n" +
+    "\t\t\tscalar and Vector API batch kernels\n" +
+    "    kernels QUERY_FILE INDEX\n" +
+    "\t\t\tConjunction of each query's terms with the Boolean\n" +
+    "\t\t\t#AND, the scalar merge and the scalar and Vector\n" +
+    "\t\t\tAPI Intersect kernels (java --add-modules\n" +
+    "\t\t\tjdk.incubator.vector)\n";
+
+  /**
+   *  The number of times that each measurement is repeated.  The
+   *  first half of the repetitions warm up the JIT compiler; the
+   *  median of the rest is reported.
+   */
+  private static final int REPETITIONS = 21;
+
+  /**
+   *  The number of times that the kernels benchmark runs the
+   *  Intersect kernels on every query before it is measured.  The
+   *  Vector API is slow until C2 compiles it, which takes more
+   *  calls than the first half of the repetitions make.
+   */
+  private static final int KERNEL_WARMUP = 2000;
+
+  /**
+   *  How scoreBatches scores a batch.
+   */
+  private static final int LOOP = 0;
+  private static final int SCALAR = 1;
+  private static final int VECTOR = 2;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A QryIop whose inverted list is supplied by the caller instead
+   *  of being read from the index.
+   */
+  static class QryIopList extends QryIop {
+
+    private InvList list;
+
+    QryIopList (InvList list) {
+      this.list = list;
+      this.field = list.field;
+    }
+
+    protected void evaluate () throws IOException {
+      this.invertedList = this.list;
+    }
+  }
+
+  /**
+   *  An inverted list that finds docids by stepping through the
+   *  postings one at a time, the way docIteratorAdvanceTo used to.
+   *  It is the reference point for the intersect benchmark.
+   */
+  static class InvListLinear extends InvList {
+
+    InvListLinear (InvList list) {
+      this.field = list.field;
+      this.df = list.df;
+      this.ctf = list.ctf;
+      this.docids = list.docids;
+      this.tfs = list.tfs;
+      this.posOffsets = list.posOffsets;
+      this.positions = list.positions;
+    }
+
+    public int findDocid (int from, int docid) {
+      while ((from < this.df) && (this.getDocid (from) < docid)) {
+        from ++;
+      }
+      return from;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  public static void main (String[] args) throws IOException {
+
+    if (args.length < 1) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    if (args[0].equals ("intersect")) {
+      int rareDf = (args.length > 1) ? Integer.parseInt (args[1]) : 1000;
+      int commonDf = (args.length > 2) ? Integer.parseInt (args[2]) : 1000000;
+      int numDocs = (args.length > 3) ? Integer.parseInt (args[3]) : 2000000;
+      benchmarkIntersect (rareDf, commonDf, numDocs);
+    } else if (args[0].equals ("compress")) {
+      int df = (args.length > 1) ? Integer.parseInt (args[1]) : 1000000;
+      int numDocs = (args.length > 2) ? Integer.parseInt (args[2]) : 2000000;
+      benchmarkCompress (df, numDocs);
+    } else if (args[0].equals ("score")) {
+      int df = (args.length > 1) ? Integer.parseInt (args[1]) : 1000000;
+      int numDocs = (args.length > 2) ? Integer.parseInt (args[2]) : 2000000;
+      benchmarkScore (df, numDocs);
+    } else if (args[0].equals ("kernels") && (args.length == 3)) {
+      benchmarkKernels (args[1], args[2]);
+    } else {
+      System.err.println (usage);
+      System.exit (1);
+    }
+  }
+
+  /**
+   *  Create a synthetic inverted list with about df postings drawn
+   *  uniformly from numDocs documents.  Each posting has 1 location.
+   *  @param df The expected number of postings.
+   *  @param numDocs The number of documents in the synthetic corpus.
+   *  @param seed The random seed.
+   *  @return The inverted list.
+   */
+  static InvList syntheticList (int df, int numDocs, long seed) {
+
+    Random random = new Random (seed);
+    double p = (double) df / numDocs;
+    InvList list = new InvList ("body");
+    int[] location = new int[1];
+
+    for (int d = 0; d < numDocs; d++) {
+      if (random.nextDouble () < p) {
+        location[0] = random.nextInt (1000);
+        list.appendPosting (d, location, 1);
+      }
+    }
+
+    return list;
+  }
+
+  /**
+   *  The median of a set of measurements.
+   *  @param times The measurements.  The array is sorted.
+   *  @return The median.
+   */
+  static double median (double[] times) {
+    Arrays.sort (times);
+    return times[times.length / 2];
+  }
+
+  /**
+   *  Intersect inverted lists with the UnrankedBoolean #AND
+   *  operator, which uses Qry.docIteratorHasMatchAll.
+   *  @return The number of documents in the intersection.
+   */
+  static int qryIntersect (InvList... lists) throws IOException {
+
+    RetrievalModel model = new RetrievalModelUnrankedBoolean ();
+    QrySopAnd and = new QrySopAnd ();
+    QryIopList[] iops = new QryIopList[lists.length];
+
+    for (int i = 0; i < lists.length; i++) {
+      iops[i] = new QryIopList (lists[i]);
+      and.appendArg (iops[i]);
+    }
+
+    //  The implied #SCORE operators read statistics from the index
+    //  when they are initialized, so initialize the lists directly.
+    //  The #AND isn't initialized, so call docIteratorHasMatchAll,
+    //  which its docIteratorHasMatch uses for this model.
+
+    for (QryIopList iop : iops) {
+      iop.initialize (model);
+    }
+
+    int matches = 0;
+
+    while (and.docIteratorHasMatchAll (model)) {
+      int docid = and.docIteratorGetMatch ();
+      matches ++;
+      and.docIteratorAdvancePast (docid);
+    }
+
+    return matches;
+  }
+
+  /**
+   *  Compare linear and galloping docIterators on a skewed pair of
+   *  lists.  The common list is the first argument, which is the
+   *  worst case for docIteratorHasMatchAll.
+   */
+  static void benchmarkIntersect (int rareDf, int commonDf, int numDocs)
+    throws IOException {
+
+    InvList rare = syntheticList (rareDf, numDocs, 1);
+    InvList common = syntheticList (commonDf, numDocs, 2);
+    InvList rareLinear = new InvListLinear (rare);
+    InvList commonLinear = new InvListLinear (common);
+
+    System.out.println ("intersect:  rare df=" + rareDf +
+                        ", common df=" + commonDf +
+                        ", documents=" + numDocs);
+
+    int n = REPETITIONS - REPETITIONS / 2;
+    double[] linear = new double[n];
+    double[] galloping = new double[n];
+    int matchesLinear = 0;
+    int matchesGalloping = 0;
+
+    for (int rep = 0; rep < REPETITIONS; rep++) {
+      long t0 = System.nanoTime ();
+      matchesLinear = qryIntersect (commonLinear, rareLinear);
+      long t1 = System.nanoTime ();
+      matchesGalloping = qryIntersect (common, rare);
+      long t2 = System.nanoTime ();
+
+      if (rep >= REPETITIONS / 2) {
+        linear[rep - REPETITIONS / 2] = (t1 - t0) / 1e6;
+        galloping[rep - REPETITIONS / 2] = (t2 - t1) / 1e6;
+      }
+    }
+
+    if (matchesLinear != matchesGalloping) {
+      throw new IllegalStateException ("The intersections differ.");
+    }
+
+    System.out.printf ("    matches:   %d%n", matchesLinear);
+    System.out.printf ("    linear:    %.3f ms%n", median (linear));
+    System.out.printf ("    galloping: %.3f ms%n", median (galloping));
+    System.out.printf ("    speedup:   %.1fx%n",
+                       median (linear) / median (galloping));
+  }
+
+  /**
+   *  Read every docid and tf of an inverted list, the way #SUM and
+   *  #OR step through their arguments.
+   *  @return A checksum, so that the loop can't be optimized away.
+   */
+  static long scan (InvList list) {
+
+    long sum = 0;
+
+    for (int n = 0; n < list.df; n++) {
+      sum += list.getDocid (n) + list.getTf (n);
+    }
+
+    return sum;
+  }
+
+  /**
+   *  Compare the size and speed of a plain inverted list and the same
+   *  list compressed with InvListCompressed.
+   */
+  static void benchmarkCompress (int df, int numDocs) throws IOException {
+
+    InvList plain = syntheticList (df, numDocs, 2);
+    InvList compressed = new InvListCompressed (plain);
+    InvList rare = syntheticList (1000, numDocs, 1);
+
+    System.out.println ("compress:  df=" + plain.df +
+                        ", documents=" + numDocs);
+    System.out.printf ("    plain:       %d KB%n", plain.ramBytesUsed () / 1024);
+    System.out.printf ("    compressed:  %d KB (%.1fx smaller)%n",
+                       compressed.ramBytesUsed () / 1024,
+                       (double) plain.ramBytesUsed () /
+                       compressed.ramBytesUsed ());
+
+    int n = REPETITIONS - REPETITIONS / 2;
+    double[][] times = new double[4][n];
+
+    for (int rep = 0; rep < REPETITIONS; rep++) {
+      long t0 = System.nanoTime ();
+      long sumPlain = scan (plain);
+      long t1 = System.nanoTime ();
+      long sumCompressed = scan (compressed.view ());
+      long t2 = System.nanoTime ();
+      int matchesPlain = qryIntersect (plain, rare);
+      long t3 = System.nanoTime ();
+      int matchesCompressed = qryIntersect (compressed.view (), rare);
+      long t4 = System.nanoTime ();
+
+      if ((sumPlain != sumCompressed) ||
+          (matchesPlain != matchesCompressed)) {
+        throw new IllegalStateException ("The compressed list differs.");
+      }
+
+      if (rep >= REPETITIONS / 2) {
+        int i = rep - REPETITIONS / 2;
+        times[0][i] = (t1 - t0) / 1e6;
+        times[1][i] = (t2 - t1) / 1e6;
+        times[2][i] = (t3 - t2) / 1e6;
+        times[3][i] = (t4 - t3) / 1e6;
+      }
+    }
+
+    System.out.printf ("    scan:       %.3f ms plain, %.3f ms compressed%n",
+                       median (times[0]), median (times[1]));
+    System.out.printf ("    intersect:  %.3f ms plain, %.3f ms compressed%n",
+                       median (times[2]), median (times[3]));
+  }
+
+  /**
+   *  A #SCORE operator that scores a document the way
+   *  QrySopScore.getScore used to:  test the model's type, read its
+   *  parameters, and compute the term's statistics, for every
+   *  document.  It is the reference point for the score benchmark.
+   */
+  static class DispatchScore {
+
+    private double b = -1.0;
+    private double k1 = -1.0;
+    private double mu = -1.0;
+    private double lambda = -1.0;
+    private double N;
+    private double df;
+    private double mle;
+    private double avgLength;
+    private int[] lengths;
+
+    DispatchScore (double N, double df, double mle, double avgLength,
+                   int[] lengths) {
+      this.N = N;
+      this.df = df;
+      this.mle = mle;
+      this.avgLength = avgLength;
+      this.lengths = lengths;
+    }
+
+    double getScore (RetrievalModel r, QryIop arg) {
+
+      if (r instanceof RetrievalModelUnrankedBoolean) {
+        return 1.0;
+      } else if (r instanceof RetrievalModelRankedBoolean) {
+        return arg.docIteratorGetMatchTf ();
+      } else if (r instanceof RetrievalModelIndri) {
+        if (mu == -1.0 || lambda == -1.0) {
+          mu = ((RetrievalModelIndri) r).mu;
+          lambda = ((RetrievalModelIndri) r).lambda;
+        }
+
+        double doc_len = lengths[arg.docIteratorGetMatch ()];
+        double tf = arg.docIteratorGetMatchTf ();
+
+        return 1.0 * (1.0 - lambda) * (tf + mu * mle) / (doc_len + mu) + mle * lambda;
+      } else if (r instanceof RetrievalModelBM25) {
+        if (b == -1.0 || k1 == -1.0) {
+          b  = ((RetrievalModelBM25) r).b;
+          k1 = ((RetrievalModelBM25) r).k1;
+        }
+
+        double doc_len = lengths[arg.docIteratorGetMatch ()];
+        double tf = arg.docIteratorGetMatchTf ();
+
+        double rsj = 1.0 * (N - df + 0.5) / (df + 0.5);
+        if (rsj < 1.0) {
+          rsj = 0.0;
+        } else {
+          rsj = Math.log (rsj);
+        }
+        double tf_weight = 1.0 * tf / (tf + k1 * (1.0 - b + b * doc_len / avgLength));
+        double user_weight = 1.0;
+
+        return rsj * tf_weight * user_weight;
+      } else {
+        throw new IllegalArgumentException
+          (r.getClass ().getName () + " doesn't support the SCORE operator.");
+      }
+    }
+  }
+
+  /**
+   *  Score a #SUM of terms document at a time, as QrySopSum does,
+   *  with per-document dispatch if scorers is null, otherwise with
+   *  the bound scorers.
+   *  @return The sum of the scores.
+   */
+  static double scoreSum (InvList[] lists, RetrievalModel r,
+                          DispatchScore[] dispatch,
+                          QrySopScore.Scorer[] scorers)
+    throws IOException {
+
+    int n = lists.length;
+    QryIopList[] iops = new QryIopList[n];
+    double sum = 0.0;
+
+    for (int i = 0; i < n; i++) {
+      iops[i] = new QryIopList (lists[i]);
+      iops[i].initialize (r);
+    }
+
+    while (true) {
+      int docid = Integer.MAX_VALUE;
+
+      for (int i = 0; i < n; i++) {
+        if (iops[i].docIteratorHasMatch (r))
+          docid = Math.min (docid, iops[i].docIteratorGetMatch ());
+      }
+
+      if (docid == Integer.MAX_VALUE)
+        break;
+
+      double score = 0.0;
+
+      for (int i = 0; i < n; i++) {
+        if (iops[i].docIteratorHasMatch (r) &&
+            (iops[i].docIteratorGetMatch () == docid)) {
+          if (scorers == null) {
+            score += dispatch[i].getScore (r, iops[i]);
+          } else {
+            score += scorers[i].score (iops[i]);
+          }
+          iops[i].docIteratorAdvancePast (docid);
+        }
+      }
+
+      sum += score;
+    }
+
+    return sum;
+  }
+
+  /**
+   *  Score every posting of each list a batch at a time, a document
+   *  at a time (LOOP), with the scorer's scalar batch kernel (SCALAR)
+   *  or with its Vector API batch kernel (VECTOR).
+   *  @return The sum of the scores.
+   */
+  static double scoreBatches (InvList[] lists, QrySopScore.Scorer[] scorers,
+                              int kernel) {
+
+    int[] docids = new int[QrySop.BATCH_SIZE];
+    int[] tfs = new int[QrySop.BATCH_SIZE];
+    double[] scores = new double[QrySop.BATCH_SIZE];
+    double sum = 0.0;
+
+    for (int t = 0; t < lists.length; t++) {
+      InvList list = lists[t];
+      QrySopScore.Scorer scorer = scorers[t];
+
+      for (int start = 0; start < list.df; start += QrySop.BATCH_SIZE) {
+        int n = Math.min (QrySop.BATCH_SIZE, list.df - start);
+
+        for (int i = 0; i < n; i++) {
+          docids[i] = list.getDocid (start + i);
+          tfs[i] = list.getTf (start + i);
+        }
+
+        if (kernel == LOOP) {
+          for (int i = 0; i < n; i++)
+            scores[i] = scorer.score (docids[i], tfs[i]);
+        } else {
+          scorer.scoreBatch (docids, tfs, n, scores, kernel == VECTOR);
+        }
+
+        for (int i = 0; i < n; i++)
+          sum += scores[i];
+      }
+    }
+
+    return sum;
+  }
+
+  /**
+   *  Compare a BM25 and an Indri #SUM of #SCORE operators scored with
+   *  per-document model dispatch and with the scorers that
+   *  QrySopScore binds when it is initialized, and the scorers'
+   *  scalar and Vector API batch kernels with scoring a batch a
+   *  document at a time.  All must give the same scores.
+   */
+  static void benchmarkScore (int df, int numDocs) throws IOException {
+
+    Random random = new Random (3);
+    int[] lengths = new int[numDocs];
+    long sumLengths = 0;
+
+    for (int d = 0; d < numDocs; d++) {
+      lengths[d] = 1 + random.nextInt (1000);
+      sumLengths += lengths[d];
+    }
+
+    double N = numDocs;
+    double avgLength = (double) sumLengths / (1.0 + numDocs);
+    RetrievalModelBM25 bm25 = new RetrievalModelBM25 (0.75, 1.2, 0.0);
+    RetrievalModelIndri indri = new RetrievalModelIndri (2500, 0.4);
+    double[] bm25Norms =
+      DocNormStore.bm25Norms (lengths, bm25.k1, bm25.b, avgLength);
+    double[] indriNorms = DocNormStore.indriNorms (lengths, indri.mu);
+    double[] indriFactors =
+      DocNormStore.indriDefaultFactors (indriNorms, indri.mu);
+
+    //  Four terms, each half as frequent as the one before.
+
+    int terms = 4;
+    InvList[] lists = new InvList[terms];
+    DispatchScore[] dispatch = new DispatchScore[terms];
+    QrySopScore.Scorer[] bm25Scorers = new QrySopScore.Scorer[terms];
+    QrySopScore.Scorer[] indriScorers = new QrySopScore.Scorer[terms];
+    long postings = 0;
+
+    for (int i = 0; i < terms; i++) {
+      lists[i] = syntheticList (df >> i, numDocs, 2 + i);
+      postings += lists[i].df;
+
+      double mle = (double) lists[i].ctf / sumLengths;
+
+      dispatch[i] = new DispatchScore (N, lists[i].df, mle, avgLength, lengths);
+      bm25Scorers[i] =
+        new QrySopScore.BM25Scorer (QrySopScore.getRsj (N, lists[i].df),
+                                    bm25Norms);
+      indriScorers[i] =
+        new QrySopScore.IndriScorer (indri.mu, indri.lambda, mle, indriNorms,
+                                     indriFactors);
+    }
+
+    System.out.println ("score:  " + terms + " terms, postings=" + postings +
+                        ", documents=" + numDocs);
+
+    //  The scores of the Vector API kernels are checked, but they are
+    //  timed only if the jdk.incubator.vector module is present.
+
+    int[] kernels = Intersect.VECTOR ?
+      new int[] { LOOP, SCALAR, VECTOR } : new int[] { LOOP, SCALAR };
+    int n = REPETITIONS - REPETITIONS / 2;
+    double[][] times = new double[4 + 2 * kernels.length][n];
+
+    for (int rep = 0; rep < REPETITIONS; rep++) {
+      long[] t = new long[times.length + 1];
+
+      t[0] = System.nanoTime ();
+      double bm25Dispatch = scoreSum (lists, bm25, dispatch, null);
+      t[1] = System.nanoTime ();
+      double bm25Bound = scoreSum (lists, bm25, null, bm25Scorers);
+      t[2] = System.nanoTime ();
+      double indriDispatch = scoreSum (lists, indri, dispatch, null);
+      t[3] = System.nanoTime ();
+      double indriBound = scoreSum (lists, indri, null, indriScorers);
+      t[4] = System.nanoTime ();
+
+      if ((bm25Dispatch != bm25Bound) || (indriDispatch != indriBound)) {
+        throw new IllegalStateException ("The bound scorers' scores differ.");
+      }
+
+      double bm25Loop = 0.0;
+      double indriLoop = 0.0;
+
+      for (int k = 0; k < kernels.length; k++) {
+        double bm25Batch = scoreBatches (lists, bm25Scorers, kernels[k]);
+        t[5 + 2 * k] = System.nanoTime ();
+        double indriBatch = scoreBatches (lists, indriScorers, kernels[k]);
+        t[6 + 2 * k] = System.nanoTime ();
+
+        if (kernels[k] == LOOP) {
+          bm25Loop = bm25Batch;
+          indriLoop = indriBatch;
+        } else if ((bm25Batch != bm25Loop) || (indriBatch != indriLoop)) {
+          throw new IllegalStateException ("The batch kernels' scores differ.");
+        }
+      }
+
+      if (rep >= REPETITIONS / 2) {
+        for (int i = 0; i < times.length; i++)
+          times[i][rep - REPETITIONS / 2] = (t[i + 1] - t[i]) / 1e6;
+      }
+    }
+
+    double[] median = new double[times.length];
+
+    for (int i = 0; i < times.length; i++)
+      median[i] = median (times[i]);
+
+    System.out.printf ("    BM25:   %.3f ms dispatch, %.3f ms bound (%.2fx)%n",
+                       median[0], median[1], median[0] / median[1]);
+    System.out.printf ("    Indri:  %.3f ms dispatch, %.3f ms bound (%.2fx)%n",
+                       median[2], median[3], median[2] / median[3]);
+    System.out.printf ("    BM25 batches:   %.3f ms loop, %.3f ms scalar (%.2fx)%n",
+                       median[4], median[6], median[4] / median[6]);
+    System.out.printf ("    Indri batches:  %.3f ms loop, %.3f ms scalar (%.2fx)%n",
+                       median[5], median[7], median[5] / median[7]);
+
+    if (Intersect.VECTOR) {
+      System.out.printf ("    BM25 batches:   %.3f ms vector (%.2fx scalar)%n",
+                         median[8], median[6] / median[8]);
+      System.out.printf ("    Indri batches:  %.3f ms vector (%.2fx scalar)%n",
+                         median[9], median[7] / median[9]);
+    }
+  }
+
+  /**
+   *  Read the terms of each query in a query file, ignoring query
+   *  operators, and their inverted lists.  A term without a field is
+   *  in the body field.  Queries with fewer than two terms that occur
+   *  in the index are skipped.
+   *  @return The docids of each query's inverted lists.
+   */
+  static List<int[][]> readQueryLists (String queryFilePath)
+    throws IOException {
+
+    List<int[][]> queries = new ArrayList<int[][]> ();
+    BufferedReader input = new BufferedReader (new FileReader (queryFilePath));
+
+    try {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        int colon = line.indexOf (':');
+        String query = line.substring (colon + 1).toLowerCase ();
+
+        query = query.replaceAll ("#[a-z]+(/[0-9]+)?", " ");
+        query = query.replaceAll ("[()]", " ");
+
+        List<int[]> lists = new ArrayList<int[]> ();
+
+        for (String token : query.trim ().split ("\\s+")) {
+          if (token.isEmpty () || token.matches ("[0-9.]+"))
+            continue;			// A weight.
+
+          int dot = token.lastIndexOf ('.');
+          String term = (dot < 0) ? token : token.substring (0, dot);
+          String field = (dot < 0) ? "body" : token.substring (dot + 1);
+          InvList list = new InvList (term, field);
+
+          if (list.df > 0) {
+            int[] docids = new int[list.df];
+
+            for (int n = 0; n < list.df; n++)
+              docids[n] = list.getDocid (n);
+
+            lists.add (docids);
+          }
+        }
+
+        if (lists.size () >= 2)
+          queries.add (lists.toArray (new int[lists.size ()][]));
+      }
+    } finally {
+      input.close ();
+    }
+
+    return queries;
+  }
+
+  /**
+   *  Intersect lists of docids with the scalar merge, from the
+   *  shortest list to the longest, as Intersect.intersect does.
+   *  @return The number of docids in the intersection.
+   */
+  static int scalarIntersect (int[][] lists, int[] out) {
+
+    int[][] sorted = lists.clone ();
+
+    Arrays.sort (sorted, new Comparator<int[]> () {
+      public int compare (int[] a, int[] b) {
+        return Integer.compare (a.length, b.length);
+      }
+    });
+
+    int n = sorted[0].length;
+    System.arraycopy (sorted[0], 0, out, 0, n);
+
+    for (int k = 1; (k < sorted.length) && (n > 0); k++) {
+      n = Intersect.intersectScalar (out, n, sorted[k], sorted[k].length, out);
+    }
+
+    return n;
+  }
+
+  /**
+   *  Compare the Boolean #AND, the scalar merge and the scalar and
+   *  Vector API Intersect kernels on the conjunction of each query's
+   *  terms, with inverted lists from an index.  The #AND and the
+   *  scalar merge are the reference points.  All must find the same
+   *  documents.  The Vector API kernels are measured only if the
+   *  jdk.incubator.vector module is present.
+   */
+  static void benchmarkKernels (String queryFilePath, String indexPath)
+    throws IOException {
+
+    Idx.initialize (indexPath);
+
+    List<int[][]> queries = readQueryLists (queryFilePath);
+    List<InvList[]> invLists = new ArrayList<InvList[]> ();
+    int[] out = new int[Idx.INDEXREADER.maxDoc ()];
+    long postings = 0;
+
+    for (int[][] lists : queries) {
+      InvList[] q = new InvList[lists.length];
+
+      for (int i = 0; i < lists.length; i++) {
+        q[i] = new InvList ("body");
+
+        for (int docid : lists[i])
+          q[i].appendPosting (docid, new int[] { 0 }, 1);
+
+        postings += lists[i].length;
+      }
+
+      invLists.add (q);
+    }
+
+    System.out.println ("kernels:  queries=" + queries.size () +
+                        ", postings=" + postings +
+                        ", vector=" + Intersect.VECTOR);
+
+    for (int rep = 0; rep < KERNEL_WARMUP; rep++) {
+      for (int[][] lists : queries) {
+        kernelIntersect (lists, out, false);
+
+        if (Intersect.VECTOR)
+          kernelIntersect (lists, out, true);
+      }
+    }
+
+    int n = REPETITIONS - REPETITIONS / 2;
+    double[][] times = new double[4][n];
+    long matches = 0;
+
+    for (int rep = 0; rep < REPETITIONS; rep++) {
+      long matchesQry = 0;
+      long matchesScalar = 0;
+      long matchesBlocks = 0;
+      long matchesVector = 0;
+
+      long t0 = System.nanoTime ();
+      for (InvList[] q : invLists)
+        matchesQry += qryIntersect (q);
+      long t1 = System.nanoTime ();
+      for (int[][] lists : queries)
+        matchesScalar += scalarIntersect (lists, out);
+      long t2 = System.nanoTime ();
+      for (int[][] lists : queries)
+        matchesBlocks += kernelIntersect (lists, out, false);
+      long t3 = System.nanoTime ();
+      if (Intersect.VECTOR) {
+        for (int[][] lists : queries)
+          matchesVector += kernelIntersect (lists, out, true);
+      } else {
+        matchesVector = matchesQry;
+      }
+      long t4 = System.nanoTime ();
+
+      if ((matchesQry != matchesScalar) || (matchesScalar != matchesBlocks) ||
+          (matchesBlocks != matchesVector)) {
+        throw new IllegalStateException ("The intersections differ.");
+      }
+
+      matches = matchesQry;
+
+      if (rep >= REPETITIONS / 2) {
+        int i = rep - REPETITIONS / 2;
+        times[0][i] = (t1 - t0) / 1e6;
+        times[1][i] = (t2 - t1) / 1e6;
+        times[2][i] = (t3 - t2) / 1e6;
+        times[3][i] = (t4 - t3) / 1e6;
+      }
+    }
+
+    double[] median = new double[4];
+
+    for (int i = 0; i < 4; i++)
+      median[i] = median (times[i]);
+
+    System.out.printf ("    matches:  %d%n", matches);
+    System.out.printf ("    #AND:     %.3f ms%n", median[0]);
+    System.out.printf ("    scalar:   %.3f ms%n", median[1]);
+    System.out.printf ("    blocks:   %.3f ms (%.2fx scalar, %.2fx #AND)%n",
+                       median[2], median[1] / median[2], median[0] / median[2]);
+
+    if (Intersect.VECTOR) {
+      System.out.printf ("    vector:   %.3f ms (%.2fx scalar, %.2fx #AND)%n",
+                         median[3], median[1] / median[3],
+                         median[0] / median[3]);
+    }
+  }
+
+  /**
+   *  Intersect lists of docids with the k-list Intersect kernel.
+   *  @param vector Whether to use the Vector API kernels.
+   *  @return The number of docids in the intersection.
+   */
+  static int kernelIntersect (int[][] lists, int[] out, boolean vector) {
+
+    int[] from = new int[lists.length];
+    int[] to = new int[lists.length];
+
+    for (int i = 0; i < lists.length; i++)
+      to[i] = lists[i].length;
+
+    return Intersect.intersect (lists, from, to, out, vector);
+  }
+}
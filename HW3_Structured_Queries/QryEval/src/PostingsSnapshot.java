@@ -0,0 +1,383 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A compact, read-only copy of an index's inverted lists that is
+ *  memory-mapped instead of being read through Lucene.  Run it to
+ *  export a snapshot; see the usage message.
+ *  <p>
+ *  Each field that has positions is stored in four files.  Every file
+ *  is an array of big-endian ints, except for the term strings.
+ *  </p>
+ *  <pre>
+ *    FIELD.dict  header:     magic, version, maxDoc, numTerms
+ *                termOffset: numTerms+1 byte offsets into the term strings
+ *                df:         numTerms document frequencies
+ *                ctf:        numTerms collection term frequencies
+ *                postStart:  numTerms indexes of each term's first posting
+ *                termBytes:  the UTF-8 terms, in Lucene's (byte) order
+ *    FIELD.docs  the docid of every posting, term by term
+ *    FIELD.offs  the index in FIELD.pos of every posting's first
+ *                position, plus a final entry, so offs[i+1]-offs[i]
+ *                is the tf of posting i
+ *    FIELD.pos   the positions of every posting
+ *  </pre>
+ *  <p>
+ *  Opening a snapshot only maps the files.  Terms are found by a
+ *  binary search over the mapped dictionary, and {@link InvListMapped}
+ *  reads postings from the mapped columns without copying them, so
+ *  QryEval processes on the same host share one copy in the page
+ *  cache.  Each file must be smaller than 2GB.
+ *  </p>
+ */
+public class PostingsSnapshot {
+
+  //  --------------- Constants and variables -----------------------
+
+  static String usage =
+    "Usage:  java PostingsSnapshot -index INDEX_PATH -output SNAPSHOT_PATH\n\n" +
+    "Export the inverted lists of every field that has positions into\n" +
+    "directory SNAPSHOT_PATH.  Set postingsSnapshotPath=SNAPSHOT_PATH in\n" +
+    "the QryEval parameter file to use the snapshot.\n";
+
+  private static final int MAGIC = 0x51455053;		// "QEPS"
+  private static final int VERSION = 1;
+  private static final int HEADER_INTS = 4;
+
+  /**
+   *  The mapped fields, indexed by field name.
+   */
+  private Map<String, FieldPostings> fields =
+    new HashMap<String, FieldPostings> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The mapped files of one field.
+   */
+  private static class FieldPostings {
+    String field;
+    int numTerms;
+    ByteBuffer dict;
+    IntBuffer dictInts;
+    int termBytesStart;
+    IntBuffer docs;
+    IntBuffer offs;
+    IntBuffer pos;
+
+    int termOffset (int i) {
+      return this.dictInts.get (HEADER_INTS + i);
+    }
+
+    int df (int i) {
+      return this.dictInts.get (HEADER_INTS + (this.numTerms + 1) + i);
+    }
+
+    int ctf (int i) {
+      return this.dictInts.get (HEADER_INTS + (this.numTerms + 1) + this.numTerms + i);
+    }
+
+    int postingStart (int i) {
+      return this.dictInts.get (HEADER_INTS + (this.numTerms + 1) + 2 * this.numTerms + i);
+    }
+
+    /**
+     *  Compare the i'th term with a key, in unsigned byte order.
+     */
+    int compareTerm (int i, byte[] key) {
+      int start = this.termBytesStart + this.termOffset (i);
+      int end = this.termBytesStart + this.termOffset (i + 1);
+      int len = Math.min (end - start, key.length);
+
+      for (int k = 0; k < len; k++) {
+        int diff = (this.dict.get (start + k) & 0xff) - (key[k] & 0xff);
+
+        if (diff != 0)
+          return diff;
+      }
+
+      return (end - start) - key.length;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Use {@link #open} to open a snapshot.
+   */
+  private PostingsSnapshot () {
+  }
+
+  /**
+   *  Map the snapshot files in a directory.  No postings are read.
+   *  @param path The snapshot directory.
+   *  @param reader The index that the snapshot must match.
+   *  @return The snapshot.
+   *  @throws IllegalArgumentException The snapshot is invalid or stale.
+   *  @throws IOException Error accessing the snapshot.
+   */
+  public static PostingsSnapshot open (String path, IndexReader reader)
+    throws IllegalArgumentException, IOException {
+
+    PostingsSnapshot snapshot = new PostingsSnapshot ();
+    File dir = new File (path);
+    File[] dictFiles = dir.listFiles ();
+
+    if (dictFiles == null) {
+      throw new IllegalArgumentException ("Can't read snapshot " + path);
+    }
+
+    for (File f : dictFiles) {
+      String name = f.getName ();
+
+      if (! name.endsWith (".dict"))
+        continue;
+
+      FieldPostings fp = new FieldPostings ();
+      fp.field = name.substring (0, name.length () - ".dict".length ());
+      fp.dict = map (f);
+      fp.dictInts = fp.dict.asIntBuffer ();
+
+      if ((fp.dictInts.get (0) != MAGIC) || (fp.dictInts.get (1) != VERSION)) {
+        throw new IllegalArgumentException ("Not a postings snapshot: " + f);
+      }
+
+      if (fp.dictInts.get (2) != reader.maxDoc ()) {
+        throw new IllegalArgumentException
+          ("The postings snapshot doesn't match the index: " + f);
+      }
+
+      fp.numTerms = fp.dictInts.get (3);
+      fp.termBytesStart = 4 * (HEADER_INTS + (fp.numTerms + 1) + 3 * fp.numTerms);
+      fp.docs = map (new File (dir, fp.field + ".docs")).asIntBuffer ();
+      fp.offs = map (new File (dir, fp.field + ".offs")).asIntBuffer ();
+      fp.pos = map (new File (dir, fp.field + ".pos")).asIntBuffer ();
+
+      snapshot.fields.put (fp.field, fp);
+    }
+
+    return snapshot;
+  }
+
+  /**
+   *  Map a file into memory, read-only.
+   */
+  private static MappedByteBuffer map (File f) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile (f, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      return channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    } finally {
+      raf.close ();			// The mapping stays valid.
+    }
+  }
+
+  /**
+   *  Get the inverted list for a term from the snapshot.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list, or null if the snapshot doesn't have
+   *  the field.
+   *  @throws IOException Error decoding the term.
+   */
+  public InvList getInvList (String termString, String fieldString)
+    throws IOException {
+
+    FieldPostings fp = this.fields.get (fieldString);
+
+    if (fp == null)
+      return null;
+
+    byte[] key = termString.getBytes ("UTF-8");
+    int lo = 0;
+    int hi = fp.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = fp.compareTerm (mid, key);
+
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return new InvListMapped (fieldString, fp.df (mid), fp.ctf (mid),
+                                  fp.docs, fp.offs, fp.pos,
+                                  fp.postingStart (mid));
+      }
+    }
+
+    return new InvList (fieldString);
+  }
+
+  /**
+   *  Export the inverted lists of every field that has positions.
+   *  @param reader The index to export.
+   *  @param path The directory to write the snapshot to.
+   *  @throws IOException Error accessing the index or the snapshot.
+   */
+  public static void export (IndexReader reader, String path)
+    throws IOException {
+
+    File dir = new File (path);
+
+    if (! dir.isDirectory () && ! dir.mkdirs ()) {
+      throw new IOException ("Can't create " + path);
+    }
+
+    Fields fields = MultiFields.getFields (reader);
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+
+    for (String field : fields) {
+      Terms terms = fields.terms (field);
+
+      if ((terms == null) || ! terms.hasPositions ())
+        continue;
+
+      System.out.println ("Exporting " + field);
+      exportField (reader, liveDocs, field, terms, dir);
+    }
+  }
+
+  /**
+   *  Export the inverted lists of one field.
+   */
+  private static void exportField (IndexReader reader, Bits liveDocs,
+                                   String field, Terms terms, File dir)
+    throws IOException {
+
+    DataOutputStream docs = openOutput (new File (dir, field + ".docs"));
+    DataOutputStream offs = openOutput (new File (dir, field + ".offs"));
+    DataOutputStream pos = openOutput (new File (dir, field + ".pos"));
+
+    ByteArrayOutputStream termBytes = new ByteArrayOutputStream ();
+    int[] termOffset = new int[1024];
+    int[] df = new int[1024];
+    int[] ctf = new int[1024];
+    int[] postStart = new int[1024];
+    int numTerms = 0;
+    long numPostings = 0;
+    long numPositions = 0;
+
+    TermsEnum ithTerm = terms.iterator (null);
+    DocsAndPositionsEnum postings = null;
+    BytesRef term;
+
+    while ((term = ithTerm.next ()) != null) {
+
+      if (numTerms + 1 >= termOffset.length) {
+        int capacity = termOffset.length * 2;
+        termOffset = Arrays.copyOf (termOffset, capacity);
+        df = Arrays.copyOf (df, capacity);
+        ctf = Arrays.copyOf (ctf, capacity);
+        postStart = Arrays.copyOf (postStart, capacity);
+      }
+
+      termOffset[numTerms] = termBytes.size ();
+      termBytes.write (term.bytes, term.offset, term.length);
+      postStart[numTerms] = (int) numPostings;
+
+      postings = ithTerm.docsAndPositions (liveDocs, postings);
+
+      while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+        int tf = postings.freq ();
+
+        docs.writeInt (postings.docID ());
+        offs.writeInt ((int) numPositions);
+
+        for (int j = 0; j < tf; j++) {
+          pos.writeInt (postings.nextPosition ());
+        }
+
+        df[numTerms] ++;
+        ctf[numTerms] += tf;
+        numPostings ++;
+        numPositions += tf;
+      }
+
+      if (4 * Math.max (numPostings + 1, numPositions) > Integer.MAX_VALUE) {
+        throw new IllegalStateException
+          ("Field " + field + " is too large for a postings snapshot.");
+      }
+
+      numTerms ++;
+    }
+
+    termOffset[numTerms] = termBytes.size ();
+    offs.writeInt ((int) numPositions);
+
+    docs.close ();
+    offs.close ();
+    pos.close ();
+
+    //  The dictionary is written last, so a snapshot that was not
+    //  completely exported can't be opened.
+
+    DataOutputStream dict = openOutput (new File (dir, field + ".dict"));
+
+    dict.writeInt (MAGIC);
+    dict.writeInt (VERSION);
+    dict.writeInt (reader.maxDoc ());
+    dict.writeInt (numTerms);
+
+    for (int i = 0; i <= numTerms; i++)
+      dict.writeInt (termOffset[i]);
+    for (int i = 0; i < numTerms; i++)
+      dict.writeInt (df[i]);
+    for (int i = 0; i < numTerms; i++)
+      dict.writeInt (ctf[i]);
+    for (int i = 0; i < numTerms; i++)
+      dict.writeInt (postStart[i]);
+
+    termBytes.writeTo (dict);
+    dict.close ();
+
+    System.out.println ("    " + numTerms + " terms, " +
+                        numPostings + " postings, " +
+                        numPositions + " positions");
+  }
+
+  /**
+   *  Open a buffered output file.
+   */
+  private static DataOutputStream openOutput (File f) throws IOException {
+    return new DataOutputStream
+      (new BufferedOutputStream (new FileOutputStream (f), 1 << 16));
+  }
+
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i + 1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i + 1];
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    IndexReader reader =
+      DirectoryReader.open (FSDirectory.open (new File (indexPath)));
+
+    export (reader, outputPath);
+    reader.close ();
+  }
+}
@@ -66,6 +66,69 @@ public class QryEval {
 
   private static Map<String, String> parameters = new HashMap<String, String>();
 
+  /**
+   * The number of documents to rank and write for each query.
+   */
+  private static int outputLength = 100;
+
+  /**
+   * How ranked queries are evaluated:  "exhaustive" scores every
+   * matching document, and "maxscore", "wand" and "blockmaxwand" use
+   * MaxScore, WAND or Block-Max WAND pruning for the queries that
+   * they support.  "maxtf" uses max-tf pruning for RankedBoolean
+   * queries.  All give the same results.
+   */
+  private static String pruningAlgorithm = "exhaustive";
+
+  /**
+   * Whether queries that aren't pruned are evaluated by an
+   * interpreter that QrySpecializer specializes for them.  It gives
+   * the same results.
+   */
+  private static boolean specializeQueries = false;
+
+  /**
+   * Whether queries that aren't pruned or specialized are evaluated a
+   * batch of documents at a time (see QrySop.getScoreBatch).  It
+   * gives the same results.  It is off by default.
+   */
+  private static boolean batchEvaluation = false;
+
+  /**
+   * Whether query terms stream their postings from the index (see
+   * QryIopTermStream) instead of materializing inverted lists.
+   */
+  private static boolean streamPostings = false;
+
+  /**
+   * How the queries that Taat supports are evaluated:  "daat" is
+   * document at a time, as pruningAlgorithm says, "taat" is term at a
+   * time, and "auto" chooses for each query, term at a time if its
+   * inverted lists are long.  All give the same results.  "saat" is
+   * score at a time, from an impact-ordered index, for the BM25
+   * queries that Saat supports; it is approximate.
+   */
+  private static String evaluationMode = "daat";
+
+  /**
+   * The postings and time (nanoseconds) budgets of score-at-a-time
+   * evaluation, and whether to compare its results with exhaustive
+   * evaluation.
+   */
+  private static long saatPostingsBudget = Long.MAX_VALUE;
+  private static long saatTimeBudget = Long.MAX_VALUE;
+  private static boolean saatCompare = false;
+
+  /**
+   * Totals of the score-at-a-time comparisons:  the number of
+   * queries, the sum of their overlaps, and the time spent by each
+   * kind of evaluation, in nanoseconds.
+   */
+  private static int saatQueries = 0;
+  private static double saatOverlap = 0.0;
+  private static long saatTime = 0;
+  private static long exhaustiveTime = 0;
+
 
   //  --------------- Methods ---------------------------------------
 
@@ -119,6 +182,61 @@ public class QryEval {
       // Check whether the input is legal
       isValidParameterFile(parameters);
 
+      if (parameters.containsKey("trecEvalOutputLength")) {
+        outputLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+
+        if (outputLength < 1) {
+          throw new IllegalArgumentException
+            ("Error: Incorrect value of trecEvalOutputLength!");
+        }
+      }
+
+      if (parameters.containsKey("pruningAlgorithm")) {
+        pruningAlgorithm = parameters.get("pruningAlgorithm").toLowerCase();
+
+        if (! pruningAlgorithm.equals("exhaustive") &&
+            ! pruningAlgorithm.equals("maxscore") &&
+            ! pruningAlgorithm.equals("wand") &&
+            ! pruningAlgorithm.equals("blockmaxwand") &&
+            ! pruningAlgorithm.equals("maxtf")) {
+          throw new IllegalArgumentException
+            ("Unknown pruningAlgorithm " + pruningAlgorithm);
+        }
+      }
+
+      if (parameters.containsKey("evaluationMode")) {
+        evaluationMode = parameters.get("evaluationMode").toLowerCase();
+
+        if (! evaluationMode.equals("daat") &&
+            ! evaluationMode.equals("taat") &&
+            ! evaluationMode.equals("auto") &&
+            ! evaluationMode.equals("saat")) {
+          throw new IllegalArgumentException
+            ("Unknown evaluationMode " + evaluationMode);
+        }
+      }
+
+      if (parameters.containsKey("SAAT:postingsBudget")) {
+        saatPostingsBudget = Long.parseLong(parameters.get("SAAT:postingsBudget"));
+      }
+
+      if (parameters.containsKey("SAAT:timeBudget")) {
+        saatTimeBudget =
+          (long) (Double.parseDouble(parameters.get("SAAT:timeBudget")) * 1e6);
+      }
+
+      if (saatPostingsBudget < 1 || saatTimeBudget < 1) {
+        throw new IllegalArgumentException
+          ("Error: Incorrect value of SAAT:postingsBudget or SAAT:timeBudget!");
+      }
+
+      saatCompare = Boolean.parseBoolean(parameters.get("SAAT:compare"));
+      specializeQueries = Boolean.parseBoolean(parameters.get("specializeQueries"));
+
+      if (parameters.containsKey("batchEvaluation")) {
+        batchEvaluation = Boolean.parseBoolean(parameters.get("batchEvaluation"));
+      }
+
       // Configure query lexical processing to match index lexical
       // processing.  Initialize the index and retrieval model.
       ANALYZER.setLowercase(true);
@@ -126,13 +244,25 @@ public class QryEval {
       ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
 
       Idx.initialize(parameters.get ("indexPath"));
+      initializePostings (parameters);
       RetrievalModel model = initializeRetrievalModel (parameters);
+      initializeBlockMaxIndex (parameters, model);
+      initializeImpactIndex (parameters, model);
 
       // Perform experiments according to the given query file
       processQueryFile(parameters.get("queryFilePath"), model);
 
+      if (saatQueries > 0) {
+        System.out.printf("SAAT:  %d queries, mean overlap@%d %.4f, " +
+                          "%.3f ms/query (exhaustive %.3f ms/query)%n",
+                          saatQueries, outputLength, saatOverlap / saatQueries,
+                          saatTime / 1e6 / saatQueries,
+                          exhaustiveTime / 1e6 / saatQueries);
+      }
+
       // Clean up.
       timer.stop();
+      Idx.printInvListCacheStatistics();
       System.out.println("Time:  " + timer);
 
     // Throws exception if no file is found
@@ -218,6 +348,142 @@ public class QryEval {
     return model;
   }
 
+  /**
+   * Open the BM25 block maxima that Block-Max WAND uses, if it is
+   * enabled.  MaxScore and WAND use them too, for the score bound of
+   * each term.  They are read from blockMaxPath=dir, or else from the
+   * default location next to the index, if BlockMaxIndex has built
+   * them there.  If there are none, Block-Max WAND computes them from
+   * the inverted lists of each query, and MaxScore and WAND use
+   * looser bounds.
+   * @param parameters The parameters read from the parameter file.
+   * @param model The retrieval model.
+   * @throws IOException Error accessing the block maxima.
+   */
+  private static void initializeBlockMaxIndex (Map<String, String> parameters,
+                                               RetrievalModel model)
+    throws IOException {
+
+    if (pruningAlgorithm.equals("exhaustive") ||
+        pruningAlgorithm.equals("maxtf") ||
+        ! (model instanceof RetrievalModelBM25)) {
+      return;
+    }
+
+    double b = ((RetrievalModelBM25) model).b;
+    String path = parameters.get("blockMaxPath");
+
+    if (path == null) {
+      path = BlockMaxIndex.getDefaultPath(parameters.get("indexPath"), b);
+
+      if (! new File(path).isDirectory()) {
+        return;
+      }
+    }
+
+    Idx.initializeBlockMaxIndex(path, b);
+  }
+
+  /**
+   * Open the impact-ordered BM25 index that score-at-a-time
+   * evaluation uses, if it is enabled.  It is read from
+   * impactIndexPath=dir, or else from the default location next to
+   * the index, if ImpactIndex has built it there.  If there is none,
+   * queries are evaluated document at a time.
+   * <pre>
+   *   SAAT:postingsBudget=n   process at most n postings per query
+   *   SAAT:timeBudget=ms      spend at most ms milliseconds per query
+   *   SAAT:compare=true       also evaluate each query exhaustively,
+   *                           and report the overlap of the results
+   * </pre>
+   * @param parameters The parameters read from the parameter file.
+   * @param model The retrieval model.
+   * @throws IOException Error accessing the impacts.
+   */
+  private static void initializeImpactIndex (Map<String, String> parameters,
+                                             RetrievalModel model)
+    throws IOException {
+
+    if (! evaluationMode.equals("saat") ||
+        ! (model instanceof RetrievalModelBM25)) {
+      return;
+    }
+
+    double k1 = ((RetrievalModelBM25) model).k1;
+    double b = ((RetrievalModelBM25) model).b;
+    String path = parameters.get("impactIndexPath");
+
+    if (path == null) {
+      path = ImpactIndex.getDefaultPath(parameters.get("indexPath"), k1, b);
+
+      if (! new File(path).isDirectory()) {
+        System.err.println("No impact-ordered index at " + path +
+                           "; evaluating document at a time.");
+        return;
+      }
+    }
+
+    Idx.initializeImpactIndex(path, k1, b);
+  }
+
+  /**
+   * Configure how query operators access inverted lists, using
+   * optional parameters from the parameter file.
+   * <pre>
+   *   postingsMode=materialize   read each term's full inverted list (default)
+   *   postingsMode=stream        iterate over the index's postings lazily
+   *                              (not with a pruningAlgorithm)
+   *   postingsCacheBytes=n       cache up to n bytes of inverted lists
+   *                              across queries (materialize mode only)
+   *   postingsCacheCompression=true
+   *                              compress the cached inverted lists
+   *   postingsSnapshotPath=dir   read inverted lists from a memory-mapped
+   *                              snapshot made by PostingsSnapshot
+   *                              (materialize mode only)
+   * </pre>
+   * @param parameters The parameters read from the parameter file.
+   */
+  private static void initializePostings (Map<String, String> parameters)
+    throws IOException {
+
+    String postingsMode = parameters.get ("postingsMode");
+
+    if ((postingsMode == null) || postingsMode.equalsIgnoreCase("materialize")) {
+      streamPostings = false;
+    } else if (postingsMode.equalsIgnoreCase("stream")) {
+      streamPostings = true;
+    } else {
+      throw new IllegalArgumentException
+        ("Unknown postingsMode " + postingsMode);
+    }
+
+    //  A streaming term can't bound its scores, so pruning would
+    //  score every document.
+
+    if (streamPostings && ! pruningAlgorithm.equals("exhaustive")) {
+      throw new IllegalArgumentException
+        ("Error: pruningAlgorithm " + pruningAlgorithm +
+         " needs postingsMode=materialize!");
+    }
+
+    if (parameters.containsKey ("postingsCacheBytes")) {
+      long cacheBytes = Long.parseLong (parameters.get ("postingsCacheBytes"));
+
+      if (cacheBytes < 0) {
+        throw new IllegalArgumentException
+          ("Error: Incorrect value of postingsCacheBytes!");
+      } else if (cacheBytes > 0) {
+        boolean compress = Boolean.parseBoolean
+          (parameters.get ("postingsCacheCompression"));
+        Idx.initializeInvListCache (cacheBytes, compress);
+      }
+    }
+
+    if (parameters.containsKey ("postingsSnapshotPath")) {
+      Idx.initializePostingsSnapshot (parameters.get ("postingsSnapshotPath"));
+    }
+  }
+
   /**
    * Optimize the query by removing degenerate nodes produced during
    * query parsing, for example '#NEAR/1 (of the)' which turns into 
@@ -389,7 +655,9 @@ public class QryEval {
 
         for (int j = 0; j < t.length; j++) {
 
-          Qry termOp = new QryIopTerm(t [j], field);
+          Qry termOp = streamPostings ?
+            new QryIopTermStream(t [j], field) :
+            new QryIopTerm(t [j], field);
 
       	  currentOp.appendArg (termOp);
       	}
@@ -443,18 +711,38 @@ public class QryEval {
     
     if (q != null) {
 
-      ScoreList r = new ScoreList ();
+      //  Only the documents that will be written are kept.
+
+      ScoreList r = new ScoreList (outputLength);
       
-      if (q.args.size () > 0) {		// Ignore empty queries
+      if (q.args.size () == 0) {		// Ignore empty queries
+        return r;
+      }
 
-        q.initialize (model);
+      if (evaluationMode.equals ("saat") && Saat.canEvaluate (q, model)) {
+        long start = System.nanoTime ();
+        long postings = Saat.evaluate (q, model, r, saatPostingsBudget,
+                                       saatTimeBudget);
+        long time = System.nanoTime () - start;
 
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
-          double score = ((QrySop) q).getScore (model);
-          r.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+        if (saatCompare) {
+          compareWithExhaustive (q, model, r, postings, time);
         }
+
+        return r;
+      }
+
+      q.initialize (model);
+
+      boolean taat =
+        ! evaluationMode.equals ("daat") &&
+        Taat.canEvaluate (q, model) &&
+        (evaluationMode.equals ("taat") || Taat.isPreferred (q));
+
+      if (taat) {
+        Taat.evaluate (q, model, r);
+      } else {
+        evaluateDocumentAtATime (q, model, r);
       }
 
       return r;
@@ -462,6 +750,110 @@ public class QryEval {
       return null;
   }
 
+  /**
+   * Evaluate an initialized query document at a time, with the
+   * pruning algorithm that supports it, if any.
+   * @param q The query.
+   * @param model The retrieval model.
+   * @param r A ScoreList that receives the results.
+   * @throws IOException Error accessing the index
+   */
+  private static void evaluateDocumentAtATime(Qry q, RetrievalModel model,
+                                              ScoreList r)
+    throws IOException {
+
+    if (pruningAlgorithm.equals ("maxscore") &&
+        MaxScore.canEvaluate (q, model)) {
+      MaxScore.evaluate (q, model, r);
+    } else if (pruningAlgorithm.equals ("wand") &&
+               Wand.canEvaluate (q, model)) {
+      Wand.evaluate (q, model, r);
+    } else if (pruningAlgorithm.equals ("blockmaxwand") &&
+               BlockMaxWand.canEvaluate (q, model)) {
+      BlockMaxWand.evaluate (q, model, r);
+    } else if (pruningAlgorithm.equals ("maxtf") &&
+               MaxTf.canEvaluate (q, model)) {
+      MaxTf.evaluate (q, model, r);
+    } else {
+      QrySpecializer.Evaluator specialized =
+        specializeQueries ? QrySpecializer.specialize (q, model) : null;
+
+      if (specialized != null) {
+        specialized.evaluate (r);
+        return;
+      }
+
+      if (batchEvaluation) {
+        int[] docids = new int[QrySop.BATCH_SIZE];
+        double[] scores = new double[QrySop.BATCH_SIZE];
+        int n;
+
+        while ((n = ((QrySop) q).getScoreBatch (model, docids, scores)) > 0) {
+          for (int i = 0; i < n; i++) {
+            r.add (docids[i], scores[i]);
+          }
+        }
+        return;
+      }
+
+      while (q.docIteratorHasMatch (model)) {
+        int docid = q.docIteratorGetMatch ();
+        double score = ((QrySop) q).getScore (model);
+        r.add (docid, score);
+        q.docIteratorAdvancePast (docid);
+      }
+    }
+  }
+
+  /**
+   * Evaluate a query exhaustively, and print how much of its results
+   * score-at-a-time evaluation found, i.e., the fraction of the
+   * exhaustive top k that are in the score-at-a-time top k.
+   * @param q The query.
+   * @param model The retrieval model.
+   * @param saat The score-at-a-time results.
+   * @param postings The number of postings that Saat processed.
+   * @param time The time that Saat took, in nanoseconds.
+   * @throws IOException Error accessing the index
+   */
+  private static void compareWithExhaustive(Qry q, RetrievalModel model,
+                                            ScoreList saat, long postings,
+                                            long time)
+    throws IOException {
+
+    long start = System.nanoTime();
+    ScoreList exhaustive = new ScoreList(outputLength);
+
+    q.initialize(model);
+    evaluateDocumentAtATime(q, model, exhaustive);
+    exhaustiveTime += System.nanoTime() - start;
+    saatTime += time;
+
+    if (exhaustive.size() == 0) {
+      return;
+    }
+
+    Set<Integer> top = new HashSet<Integer>();
+    int found = 0;
+
+    for (int i = 0; i < exhaustive.size(); i++) {
+      top.add(exhaustive.getDocid(i));
+    }
+
+    for (int i = 0; i < saat.size(); i++) {
+      if (top.contains(saat.getDocid(i))) {
+        found++;
+      }
+    }
+
+    double overlap = (double) found / exhaustive.size();
+
+    saatQueries++;
+    saatOverlap += overlap;
+    System.out.printf("    SAAT:  %d postings, %.3f ms, overlap@%d %.4f%n",
+                      postings, time / 1e6, outputLength, overlap);
+  }
+
   /**
    * Process the query file.
    * @param queryFilePath
@@ -519,12 +911,16 @@ public class QryEval {
           // printResults(qid, r);
           // System.out.println();
 
-          for (int i = 0; i < 100 && i < len; i++) {
-            if (r.getScoreListEntry(i).docid <= 0 || r.getScoreListEntry(i).externalId == "") {
+          for (int i = 0; i < outputLength && i < len; i++) {
+            if (r.getDocid(i) <= 0) {
+              continue;
+            }
+            String externalId = r.getExternalDocid(i);
+            if (externalId == "") {
               continue;
             }
-            String tmp = qid + " " + "Q0 " + r.getScoreListEntry(i).externalId + " " + (i+1)
-                     + " " + r.getScoreListEntry(i).score + " run-1\n";
+            String tmp = qid + " " + "Q0 " + externalId + " " + (i+1)
+                     + " " + r.getDocidScore(i) + " run-1\n";
             bw.write(tmp);
           }
         } else {
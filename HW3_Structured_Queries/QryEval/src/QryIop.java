@@ -70,9 +70,11 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
     }
            
     this.locIteratorIndex = 0;
@@ -85,10 +87,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -98,7 +98,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +113,13 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The document's term frequency.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -130,6 +131,28 @@ public abstract class QryIop extends Qry {
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
+  /**
+   *  Copy the docids and tfs of the next matching documents into
+   *  buffers, and advance the iterator past them.  It is the batch
+   *  alternative to docIteratorHasMatch, docIteratorGetMatch,
+   *  docIteratorGetMatchTf and docIteratorAdvancePast.
+   *  @param docids Receives up to docids.length docids.
+   *  @param tfs Receives the tf of each document.
+   *  @return The number of documents copied, or 0 if there are no
+   *  more matches.
+   */
+  public int docIteratorNextBatch (int[] docids, int[] tfs) {
+
+    int start = this.docIteratorIndex;
+    int n = Math.min (docids.length, this.invertedList.df - start);
+
+    this.invertedList.getPostings (start, n, docids, tfs);
+
+    this.docIteratorIndex = start + n;
+    this.locIteratorIndex = 0;
+    return n;
+  }
+
   /**
    *  Get the collection term frequency (ctf) associated with this
    *  query operator.  It is an error to call this method before the
@@ -150,6 +173,33 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the largest tf of each block of the inverted list.  It is
+   *  an error to call this method before the object's initialize
+   *  method is called.
+   *  @return The last docid and largest tf of each block.
+   */
+  public BlockMaxIndex.Blocks getBlockMaxTf () {
+    return this.invertedList.getBlockMaxTf ();
+  }
+
+  /**
+   *  Get the largest BM25 length-normalized term frequency of each
+   *  block of BlockMaxIndex.BLOCK_SIZE postings in the inverted list.
+   *  It is an error to call this method before the object's
+   *  initialize method is called.
+   *  @param lengths The field lengths, indexed by internal docid.
+   *  @param b The BM25 b parameter.
+   *  @param avgLength The average field length.
+   *  @return The block maxima.
+   *  @throws IOException Error accessing the block maxima.
+   */
+  public BlockMaxIndex.Blocks getBlockMaxNormalizedTf (int[] lengths, double b,
+                                                       double avgLength)
+    throws IOException {
+    return BlockMaxIndex.compute (this.invertedList, lengths, b, avgLength);
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -203,11 +253,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -218,7 +268,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +279,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
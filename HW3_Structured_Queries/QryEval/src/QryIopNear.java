@@ -49,6 +49,10 @@ public class QryIopNear extends QryIop {
       return;
     }
 
+    //  The locations of each new posting are gathered in a buffer
+    //  that is reused (and grown if necessary) for every document.
+    int[] positions = new int[16];
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
     while (true) {
@@ -63,7 +67,7 @@ public class QryIopNear extends QryIop {
 
       // Create a new posting that is the union of the posting lists
       // that match the minDocid.  Save it.
-      List<Integer> positions = new ArrayList<Integer>();
+      int numPositions = 0;
 
       //  Find the minimum next document id.  If there is none, we're done.
       for (Qry q : this.args) {
@@ -86,6 +90,13 @@ public class QryIopNear extends QryIop {
         }
 
         if (matchDoc) {
+          // Every match consumes a location of the first argument, so
+          // its tf bounds the number of matches in this document
+          int maxMatches = this.getArg(0).docIteratorGetMatchTf();
+          if (maxMatches > positions.length) {
+            positions = new int[maxMatches];
+          }
+
           // Looking for matched location in the distance range
           for (Qry q : this.args) {
             QryIop query = (QryIop) q;
@@ -144,7 +155,7 @@ public class QryIopNear extends QryIop {
                 }
 
                 if (flag) {
-                  positions.add(first_location);
+                  positions[numPositions++] = first_location;
                   for (Qry q : this.args) {
                     QryIop query = (QryIop) q;
                     query.locIteratorAdvance();
@@ -176,8 +187,8 @@ public class QryIopNear extends QryIop {
         }
 
         // Advance doc iterators
-        if (positions.size() > 0) {
-          this.invertedList.appendPosting(minDocid, positions);
+        if (numPositions > 0) {
+          this.invertedList.appendPosting(minDocid, positions, numPositions);
         }
 
       } else {
@@ -24,6 +24,10 @@ public class QryIopSyn extends QryIop {
       return;
     }
 
+    //  The locations of each new posting are gathered in a buffer
+    //  that is reused (and grown if necessary) for every document.
+    int[] positions = new int[16];
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
     while (true) {
@@ -48,19 +52,30 @@ public class QryIopSyn extends QryIop {
       //  that match the minDocid.  Save it.
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
-      List<Integer> positions = new ArrayList<Integer>();
+      int numPositions = 0;
 
       for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null) &&
             (q_i.docIteratorGetMatch () == minDocid)) {
-              Vector<Integer> locations_i = ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	            positions.addAll (locations_i);
-              q_i.docIteratorAdvancePast (minDocid);
-	      }
+          QryIop q_iIop = (QryIop) q_i;
+          int tf_i = q_iIop.docIteratorGetMatchTf ();
+
+          if (numPositions + tf_i > positions.length) {
+            positions = Arrays.copyOf (positions,
+                                       Math.max (numPositions + tf_i,
+                                                 positions.length * 2));
+          }
+
+          while (q_iIop.locIteratorHasMatch ()) {
+            positions[numPositions++] = q_iIop.locIteratorGetMatch ();
+            q_iIop.locIteratorAdvance ();
+          }
+          q_i.docIteratorAdvancePast (minDocid);
+        }
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      Arrays.sort (positions, 0, numPositions);
+      this.invertedList.appendPosting (minDocid, positions, numPositions);
     }
   }
 
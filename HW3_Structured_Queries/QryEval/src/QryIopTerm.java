@@ -10,7 +10,11 @@ import java.util.*;
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  The term's inverted list is materialized when the operator is
+ *  evaluated.  QryIopTermStream is the TERM operator that streams its
+ *  postings instead.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
@@ -35,17 +39,49 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    this.invertedList = Idx.getInvList(this.term, this.field);
+  }
+
+  /**
+   *  Get the largest BM25 length-normalized term frequency of each
+   *  block of the inverted list.  Stored block maxima are used if
+   *  Idx has them; otherwise they are computed from the inverted
+   *  list.
+   *  @param lengths The field lengths, indexed by internal docid.
+   *  @param b The BM25 b parameter.
+   *  @param avgLength The average field length.
+   *  @return The block maxima.
+   *  @throws IOException Error accessing the block maxima.
+   */
+  public BlockMaxIndex.Blocks getBlockMaxNormalizedTf (int[] lengths, double b,
+                                                       double avgLength)
+    throws IOException {
+
+    BlockMaxIndex.Blocks blocks =
+      Idx.getBlockMaxNormalizedTf (this.term, this.field, b);
+
+    if (blocks != null) {
+      return blocks;
+    }
+    return super.getBlockMaxNormalizedTf (lengths, b, avgLength);
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
@@ -0,0 +1,323 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  The TERM operator in streaming mode.  Instead of materializing the
+ *  term's inverted list, the operator keeps a cursor on Lucene's
+ *  DocsAndPositionsEnum; documents are read as the docIterator
+ *  advances, and the locations of a document are decoded only if the
+ *  locIterator is used.  df and ctf come from the index statistics,
+ *  so memory use does not depend on the length of the inverted list.
+ *  <p>
+ *  The operator doesn't have its postings, so it can't bound its
+ *  scores.  QryEval doesn't allow pruning in streaming mode.
+ *  </p>
+ */
+public class QryIopTermStream extends QryIopTerm {
+
+  /**
+   *  The Lucene cursor, or null if the term has no (more) postings.
+   */
+  private DocsAndPositionsEnum postings = null;
+  private int df = 0;
+  private long ctf = 0;
+
+  /**
+   *  The decoded locations of the current document.  They are
+   *  valid only if locationsDecoded is true.
+   */
+  private int[] locations = new int[16];
+  private boolean locationsDecoded = false;
+  private int locationsIndex = 0;
+
+  /**
+   *  The term is assumed to match the body field.
+   *  @param termString A term string.
+   */
+  public QryIopTermStream(String termString) {
+    super(termString);
+  }
+
+  /**
+   *  The term matches in the specified field.
+   *  @param termString A term string.
+   *  @param fieldString A field string.
+   */
+  public QryIopTermStream(String termString, String fieldString) {
+    super(termString, fieldString);
+  }
+
+  /**
+   *  Evaluate the query operator by positioning the cursor on the
+   *  first document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+
+    BytesRef termBytes = new BytesRef(this.getTerm());
+    CollectionStats.TermStats stats = Idx.getTermStats(this.getTerm(), this.field);
+
+    this.df = stats.df;
+    this.ctf = stats.ctf;
+    this.postings = null;
+
+    if (this.df > 0) {
+      this.postings =
+        MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
+                                         MultiFields.getLiveDocs(Idx.INDEXREADER),
+                                         this.field, termBytes);
+    }
+
+    if ((this.postings != null) &&
+        (this.postings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS)) {
+      this.postings = null;
+    }
+
+    this.locationsDecoded = false;
+  }
+
+  /**
+   *  Advance the cursor to the first document that is at least
+   *  target.  The locations of the new document are not decoded.
+   *  @param target The internal document id to advance to.
+   */
+  private void advance (int target) {
+    try {
+      if (this.postings.advance(target) == DocIdSetIterator.NO_MORE_DOCS) {
+        this.postings = null;
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+
+    this.locationsDecoded = false;
+  }
+
+  /**
+   *  Decode the locations of the current document if that hasn't
+   *  been done yet.
+   */
+  private void decodeLocations () {
+
+    if (this.locationsDecoded)
+      return;
+
+    try {
+      int tf = this.postings.freq();
+
+      if (tf > this.locations.length) {
+        this.locations = new int[Math.max(tf, this.locations.length * 2)];
+      }
+
+      for (int j = 0; j < tf; j++) {
+        this.locations[j] = this.postings.nextPosition();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+
+    this.locationsDecoded = true;
+    this.locationsIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (docid == Integer.MAX_VALUE) {
+      this.postings = null;		// docid + 1 would overflow.
+    } else if ((this.postings != null) && (this.postings.docID() <= docid)) {
+      this.advance (docid + 1);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if ((this.postings != null) && (this.postings.docID() < docid)) {
+      this.advance (docid);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    this.postings = null;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    return this.postings.docID();
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    try {
+      return this.postings.freq();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    return (this.postings != null);
+  }
+
+  /**
+   *  Copy the docids and tfs of the next matching documents into
+   *  buffers, and advance the iterator past them.
+   *  @param docids Receives up to docids.length docids.
+   *  @param tfs Receives the tf of each document.
+   *  @return The number of documents copied, or 0 if there are no
+   *  more matches.
+   */
+  public int docIteratorNextBatch (int[] docids, int[] tfs) {
+
+    int n = 0;
+
+    while ((n < docids.length) && this.docIteratorHasMatch (null)) {
+      docids[n] = this.docIteratorGetMatch ();
+      tfs[n] = this.docIteratorGetMatchTf ();
+      this.docIteratorAdvancePast (docids[n]);
+      n ++;
+    }
+
+    return n;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.  The index
+   *  stores it as a long, but operators use ints, as an InvList does.
+   *  @return The collection term frequency (ctf).
+   *  @throws IllegalStateException The ctf doesn't fit in an int.
+   */
+  public int getCtf () {
+    if (this.ctf > Integer.MAX_VALUE) {
+      throw new IllegalStateException ("The ctf of " + this + ", " +
+                                       this.ctf + ", doesn't fit in an int");
+    }
+    return (int) this.ctf;
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    return this.df;
+  }
+
+  /**
+   *  A streaming term doesn't have its postings, so there is no
+   *  finite bound.
+   *  @return BlockMaxIndex.UNBOUNDED.
+   */
+  public BlockMaxIndex.Blocks getBlockMaxTf () {
+    return BlockMaxIndex.UNBOUNDED;
+  }
+
+  /**
+   *  Get the largest BM25 length-normalized term frequency of each
+   *  block of the inverted list.  Stored block maxima are used if
+   *  Idx has them; otherwise there is no finite bound.
+   *  @param lengths The field lengths, indexed by internal docid.
+   *  @param b The BM25 b parameter.
+   *  @param avgLength The average field length.
+   *  @return The block maxima.
+   *  @throws IOException Error accessing the block maxima.
+   */
+  public BlockMaxIndex.Blocks getBlockMaxNormalizedTf (int[] lengths, double b,
+                                                       double avgLength)
+    throws IOException {
+
+    BlockMaxIndex.Blocks blocks =
+      Idx.getBlockMaxNormalizedTf (this.getTerm(), this.field, b);
+
+    if (blocks != null) {
+      return blocks;
+    }
+    return BlockMaxIndex.UNBOUNDED;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    this.decodeLocations ();
+    this.locationsIndex ++;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+
+    this.decodeLocations ();
+
+    int tf = this.docIteratorGetMatchTf ();
+
+    while ((this.locationsIndex < tf) &&
+           (this.locations[this.locationsIndex] <= loc)) {
+      this.locationsIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    this.decodeLocations ();
+    this.locationsIndex = this.docIteratorGetMatchTf ();
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+    this.decodeLocations ();
+    return this.locations[this.locationsIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    this.decodeLocations ();
+    return (this.locationsIndex < this.docIteratorGetMatchTf ());
+  }
+}
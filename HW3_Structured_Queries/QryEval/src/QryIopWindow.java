@@ -49,6 +49,10 @@ public class QryIopWindow extends QryIop {
 	      	return;
 	    }
 
+	    //  The locations of each new posting are gathered in a buffer
+	    //  that is reused (and grown if necessary) for every document.
+	    int[] positions = new int[16];
+
 	    //  Each pass of the loop adds 1 document to result inverted list
 	    //  until all of the argument inverted lists are depleted.
 	    while (true) {
@@ -63,7 +67,7 @@ public class QryIopWindow extends QryIop {
 
 			// Create a new posting that is the union of the posting lists
 			// that match the minDocid.  Save it.
-			List<Integer> positions = new ArrayList<Integer>();
+			int numPositions = 0;
 
 			//  Find the minimum next document id.  If there is none, we're done.
 			for (Qry q : this.args) {
@@ -85,6 +89,12 @@ public class QryIopWindow extends QryIop {
 				}
 
 		        if (matchDoc) {
+		          	// Every match consumes a location of each argument, so
+		          	// the first argument's tf bounds the number of matches
+		          	int maxMatches = this.getArg(0).docIteratorGetMatchTf();
+		          	if (maxMatches > positions.length) {
+		          		positions = new int[maxMatches];
+		          	}
 
 		          	// Looking for matched location in the distance range
 					for (Qry q : this.args) {
@@ -137,7 +147,7 @@ public class QryIopWindow extends QryIop {
 		                	}
 
 			              	if (flag) {
-			                  	positions.add(min_location);
+			                  	positions[numPositions++] = min_location;
 			                  	for (Qry q : this.args) {
 			                    	QryIop query = (QryIop) q;
 			                    	query.locIteratorAdvance();
@@ -166,8 +176,8 @@ public class QryIopWindow extends QryIop {
 		        }
 
 		        // Advance doc iterators
-		        if (positions.size() > 0) {
-		          	this.invertedList.appendPosting(minDocid, positions);
+		        if (numPositions > 0) {
+		          	this.invertedList.appendPosting(minDocid, positions, numPositions);
 		        }
 
 	      	} else {
@@ -14,6 +14,188 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+  /**
+   *  The number of documents in a full batch.  See getScoreBatch.
+   */
+  public static final int BATCH_SIZE = 128;
+
+  /**
+   *  The retrieval models that score operators distinguish.  An
+   *  operator finds its model when it is initialized, so getScore can
+   *  switch on it instead of testing the model's class for every
+   *  document.
+   */
+  protected enum Model {
+    UNRANKED_BOOLEAN, RANKED_BOOLEAN, BM25, INDRI, OTHER;
+
+    /**
+     *  Get the model of a retrieval model object.
+     *  @param r A retrieval model.
+     *  @return Its model, or OTHER.
+     */
+    static Model of (RetrievalModel r) {
+      if (r instanceof RetrievalModelUnrankedBoolean) {
+        return UNRANKED_BOOLEAN;
+      } else if (r instanceof RetrievalModelRankedBoolean) {
+        return RANKED_BOOLEAN;
+      } else if (r instanceof RetrievalModelBM25) {
+        return BM25;
+      } else if (r instanceof RetrievalModelIndri) {
+        return INDRI;
+      } else {
+        return OTHER;
+      }
+    }
+  }
+
+  /**
+   *  The retrieval model that the operator was initialized for.
+   */
+  protected Model model = Model.OTHER;
+
+  /**
+   *  The arguments' batch cursors, made when they are first needed.
+   */
+  private BatchCursor[] batchCursors = null;
+
+  /**
+   *  A cursor over the batches of an argument, for operators that
+   *  merge their arguments' batches.
+   */
+  protected static class BatchCursor {
+
+    private final QrySop q;
+    private final int[] docids = new int[BATCH_SIZE];
+    private final double[] scores = new double[BATCH_SIZE];
+    private int size = 0;
+    private int pos = 0;
+    private boolean done = false;
+
+    BatchCursor (QrySop q) {
+      this.q = q;
+    }
+
+    /**
+     *  Get the current document, reading the next batch if needed.
+     *  @return The docid, or Integer.MAX_VALUE if there are no more.
+     */
+    int docid (RetrievalModel r) throws IOException {
+      if (this.pos == this.size) {
+        if (this.done)
+          return Integer.MAX_VALUE;
+
+        this.size = this.q.getScoreBatch (r, this.docids, this.scores);
+        this.pos = 0;
+
+        if (this.size == 0) {
+          this.done = true;
+          return Integer.MAX_VALUE;
+        }
+      }
+
+      return this.docids[this.pos];
+    }
+
+    /**
+     *  Get the score of the current document.
+     */
+    double score () {
+      return this.scores[this.pos];
+    }
+
+    /**
+     *  Move past the current document.
+     */
+    void next () {
+      this.pos ++;
+    }
+
+    /**
+     *  Get the docids of the current batch.  The current document is
+     *  docids()[position()]; docid must have been called to read it.
+     */
+    int[] docids () {
+      return this.docids;
+    }
+
+    /**
+     *  Get the index of the current document in the batch.
+     */
+    int position () {
+      return this.pos;
+    }
+
+    /**
+     *  Get the last docid of the current batch.
+     */
+    int last () {
+      return this.docids[this.size - 1];
+    }
+
+    /**
+     *  Get the index after the last docid of the current batch that
+     *  is at most limit.
+     */
+    int end (int limit) {
+      return Intersect.advance (this.docids, this.pos, this.size, limit + 1);
+    }
+
+    /**
+     *  Move to the first document at or after a docid.  The batch is
+     *  searched with Intersect.advance, and the next batch is read if
+     *  the docid is past its end.
+     */
+    void skipTo (RetrievalModel r, int docid) throws IOException {
+      while (this.docid (r) < docid)
+        this.pos = Intersect.advance (this.docids, this.pos, this.size, docid);
+    }
+  }
+
+  /**
+   *  Get the next batch of matching documents and their scores, and
+   *  advance past them.  It is the batch alternative to
+   *  docIteratorHasMatch, getScore and docIteratorAdvancePast; an
+   *  operator must not be evaluated both ways.  Documents are in
+   *  docid order, and their scores are the same as getScore's.  This
+   *  implementation evaluates the operator a document at a time;
+   *  operators that can do better override it.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docids Receives up to docids.length docids.
+   *  @param scores Receives the score of each document.
+   *  @return The number of documents, or 0 if there are no more matches.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public int getScoreBatch (RetrievalModel r, int[] docids, double[] scores)
+    throws IOException {
+
+    int n = 0;
+
+    while ((n < docids.length) && this.docIteratorHasMatch (r)) {
+      int docid = this.docIteratorGetMatch ();
+
+      docids[n] = docid;
+      scores[n] = this.getScore (r);
+      n ++;
+      this.docIteratorAdvancePast (docid);
+    }
+
+    return n;
+  }
+
+  /**
+   *  Get a batch cursor for each argument.
+   *  @return The cursors, in argument order.
+   */
+  protected BatchCursor[] getBatchCursors () {
+    if (this.batchCursors == null) {
+      this.batchCursors = new BatchCursor[this.args.size()];
+
+      for (int i = 0; i < this.batchCursors.length; i++)
+        this.batchCursors[i] = new BatchCursor ((QrySop) this.args.get(i));
+    }
+    return this.batchCursors;
+  }
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -44,5 +226,11 @@ public abstract class QrySop extends Qry {
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
+
+    this.model = Model.of (r);
+
+    //  Cursors that were used before are past the end of their batches.
+
+    this.batchCursors = null;
   }
 }
@@ -9,15 +9,28 @@ import java.io.*;
  */
 public class QrySopAnd extends QrySop {
 
+  /**
+   *  Whether a document must match every argument (the Boolean
+   *  models), rather than any argument (Indri).  Set by initialize.
+   */
+  private boolean matchAll = false;
+
+  /**
+   *  Buffers of the Boolean batch intersection, made when they are
+   *  first needed.
+   */
+  private int[][] lists = null;
+  private int[] from = null;
+  private int[] to = null;
+  private int[] matches = null;
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
-    if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.docIteratorHasMatchAll(r);
-    } else if (r instanceof RetrievalModelRankedBoolean) {
+    if (this.matchAll) {
       return this.docIteratorHasMatchAll(r);
     } else {
       return this.docIteratorHasMatchMin(r);
@@ -32,18 +45,170 @@ public class QrySopAnd extends QrySop {
    */
   public double getScore (RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean) {
+    switch (this.model) {
+    case UNRANKED_BOOLEAN:
       return this.getScoreUnrankedBoolean(r);
-    } else if (r instanceof RetrievalModelRankedBoolean) {
+    case RANKED_BOOLEAN:
       return this.getScoreRankedBoolean(r);
-    } else if (r instanceof RetrievalModelIndri) {
-      return getScoreIndri(r);
-    } else {
+    case INDRI:
+      return this.getScoreIndri(r);
+    default:
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the AND operator.");
     }
   }
-  
+
+  /**
+   *  Get the next batch of matching documents and their scores.  The
+   *  Boolean models intersect the arguments' batches; Indri merges
+   *  them, and uses default scores for the arguments that don't
+   *  match, as getScore does.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docids Receives up to docids.length docids.
+   *  @param scores Receives the score of each document.
+   *  @return The number of documents, or 0 if there are no more matches.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public int getScoreBatch (RetrievalModel r, int[] docids, double[] scores)
+    throws IOException {
+
+    if (! this.matchAll && (this.model != Model.INDRI)) {
+      return super.getScoreBatch(r, docids, scores);	// getScore reports the model.
+    }
+
+    if (this.matchAll) {
+      return this.getScoreBatchBoolean(r, docids, scores);
+    }
+
+    //  Indri matches the documents that any argument matches.
+
+    BatchCursor[] cursors = this.getBatchCursors();
+    int n = 0;
+
+    while (n < docids.length) {
+      int docid = Integer.MAX_VALUE;
+
+      for (BatchCursor c : cursors) {
+        docid = Math.min(docid, c.docid(r));
+      }
+
+      if (docid == Integer.MAX_VALUE) {
+        break;
+      }
+
+      double score = 1.0;
+      for (int i = 0; i < cursors.length; i++) {
+        BatchCursor c = cursors[i];
+        if (c.docid(r) == docid) {
+          score *= c.score();
+          c.next();
+        } else {
+          double temp = ((QrySop) this.args.get(i)).getDefaultScoreIndri(r, docid);
+          if (temp != 0.0) {
+            score *= temp;
+          }
+        }
+      }
+
+      docids[n] = docid;
+      scores[n] = Math.pow(score, 1.0 / this.args.size());
+      n++;
+    }
+
+    return n;
+  }
+
+  /**
+   *  getScoreBatch for the Boolean retrieval models.  The arguments'
+   *  batches are intersected up to the smallest last docid of a
+   *  batch with the k-list Intersect kernel, and then the cursors
+   *  move past the documents that were intersected.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docids Receives up to docids.length docids.
+   *  @param scores Receives the score of each document.
+   *  @return The number of documents, or 0 if there are no more matches.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private int getScoreBatchBoolean (RetrievalModel r, int[] docids, double[] scores)
+    throws IOException {
+
+    BatchCursor[] cursors = this.getBatchCursors();
+
+    if (this.matches == null) {
+      this.lists = new int[cursors.length][];
+      this.from = new int[cursors.length];
+      this.to = new int[cursors.length];
+      this.matches = new int[BATCH_SIZE];
+    }
+
+    boolean ranked = (this.model == Model.RANKED_BOOLEAN);
+    int n = 0;
+
+    while (n < docids.length) {
+      int limit = Integer.MAX_VALUE;
+
+      for (BatchCursor c : cursors) {
+        if (c.docid(r) == Integer.MAX_VALUE) {
+          return n;
+        }
+        limit = Math.min(limit, c.last());
+      }
+
+      for (int i = 0; i < cursors.length; i++) {
+        this.lists[i] = cursors[i].docids();
+        this.from[i] = cursors[i].position();
+        this.to[i] = cursors[i].end(limit);
+      }
+
+      int m = Intersect.intersect(this.lists, this.from, this.to, this.matches);
+      int k = 0;
+
+      for (; (k < m) && (n < docids.length); k++) {
+        int docid = this.matches[k];
+        double score = 1.0;
+
+        if (ranked) {
+          double min_score = Double.MAX_VALUE;
+          for (BatchCursor c : cursors) {
+            c.skipTo(r, docid);
+            min_score = Math.min(min_score, c.score());
+          }
+          score = min_score;
+        }
+
+        docids[n] = docid;
+        scores[n] = score;
+        n++;
+      }
+
+      //  Move past the documents that were intersected, or past the
+      //  last one that fit if the caller's buffer is full.
+
+      int past = (k < m) ? this.matches[k - 1] : limit;
+
+      for (BatchCursor c : cursors) {
+        c.skipTo(r, past + 1);
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   *  Initialize the query operator and its arguments, and choose the
+   *  matching rule of the retrieval model.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+
+    super.initialize(r);
+
+    this.matchAll =
+      (this.model == Model.UNRANKED_BOOLEAN) ||
+      (this.model == Model.RANKED_BOOLEAN);
+  }
+
   /**
    *  getScore for the UnrankedBoolean retrieval model.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -26,16 +26,17 @@ public class QrySopOr extends QrySop {
    */
   public double getScore (RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean) {
+    switch (this.model) {
+    case UNRANKED_BOOLEAN:
       return this.getScoreUnrankedBoolean(r);
-    } else if (r instanceof RetrievalModelRankedBoolean) {
+    case RANKED_BOOLEAN:
       return this.getScoreRankedBoolean(r);
-    } else {
+    default:
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the OR operator.");
     }
   }
-  
+
   /**
    *  getScore for the UnrankedBoolean retrieval model.
    *  @param r The retrieval model that determines how scores are calculated.
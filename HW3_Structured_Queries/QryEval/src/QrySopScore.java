@@ -31,10 +31,198 @@ public class QrySopScore extends QrySop {
   private String field;
 
   /**
-   *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  The lengths of the field in every document, indexed by docid.
    */
-  
+  private int[] doc_lengths;
+
+  /**
+   *  The smallest length of the field in any document.
+   */
+  private int min_doc_len;
+
+  /**
+   *  The BM25 RSJ weight of the term.
+   */
+  private double rsj;
+
+  /**
+   *  The scorer of the retrieval model that the operator was
+   *  initialized for, or null if the model doesn't support it.
+   */
+  private Scorer scorer = null;
+
+  /**
+   *  The tfs of the argument's current batch.  See getScoreBatch.
+   */
+  private int[] batch_tfs = null;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  Scores a document that matches, for one retrieval model.  A
+   *  scorer is bound when the operator is initialized, with the
+   *  model's parameters and the term's statistics precomputed, so
+   *  scoring a document doesn't test the model's type.  See
+   *  PostingsBenchmark for the gain.
+   *  <p>
+   *  The BM25 and Indri scorers read each document's length
+   *  normalizer from a table that Idx caches (see DocNormStore), so
+   *  scoring a term in a document is a few arithmetic operations.
+   *  They score a batch with the Vector API kernels in ScorerVector
+   *  if the jdk.incubator.vector module is present, and with a scalar
+   *  loop otherwise.  Both compute the same expression as score, so
+   *  the scores are the same.
+   *  </p>
+   */
+  abstract static class Scorer {
+
+    /**
+     *  Get the score of a matching document.
+     *  @param docid The document.
+     *  @param tf The term's frequency in the document.
+     *  @return The document score.
+     */
+    abstract double score (int docid, double tf);
+
+    /**
+     *  Get the score of a matching document.
+     *  @param arg The operator's argument, at the document.
+     *  @return The document score.
+     */
+    final double score (QryIop arg) {
+      return this.score (arg.docIteratorGetMatch(), arg.docIteratorGetMatchTf());
+    }
+
+    /**
+     *  Score a batch of matching documents.
+     *  @param docids The documents.
+     *  @param tfs The term's frequency in each document.
+     *  @param n The number of documents.
+     *  @param scores Receives the document scores.
+     */
+    final void scoreBatch (int[] docids, int[] tfs, int n, double[] scores) {
+      this.scoreBatch (docids, tfs, n, scores, Intersect.VECTOR);
+    }
+
+    /**
+     *  Score a batch of matching documents with the Vector API
+     *  kernel or the scalar loop.
+     *  @param vector Whether to use the Vector API kernel.
+     */
+    void scoreBatch (int[] docids, int[] tfs, int n, double[] scores,
+                     boolean vector) {
+      for (int i = 0; i < n; i++) {
+        scores[i] = this.score (docids[i], tfs[i]);
+      }
+    }
+
+    /**
+     *  Get the score of a document that doesn't match.  Only Indri
+     *  scores these.
+     *  @param docid The document.
+     *  @return The document score.
+     */
+    double defaultScore (int docid) {
+      return 0.0;
+    }
+  }
+
+  static class UnrankedBooleanScorer extends Scorer {
+    double score (int docid, double tf) {
+      return 1.0;
+    }
+  }
+
+  static class RankedBooleanScorer extends Scorer {
+    double score (int docid, double tf) {
+      return tf;
+    }
+  }
+
+  static class BM25Scorer extends Scorer {
+    private final double rsj;
+    private final double[] doc_norms;	// k1 * (1 - b + b * doc_len / doc_len_avg)
+
+    BM25Scorer (double rsj, double[] doc_norms) {
+      this.rsj = rsj;
+      this.doc_norms = doc_norms;
+    }
+
+    double score (int docid, double tf) {
+      double tf_weight = tf / (tf + doc_norms[docid]);
+
+      return rsj * tf_weight;
+    }
+
+    void scoreBatch (int[] docids, int[] tfs, int n, double[] scores,
+                     boolean vector) {
+      if (vector) {
+        ScorerVector.bm25 (rsj, doc_norms, docids, tfs, n, scores);
+        return;
+      }
+
+      double rsj = this.rsj;
+      double[] doc_norms = this.doc_norms;
+
+      for (int i = 0; i < n; i++) {
+        double tf = tfs[i];
+        double tf_weight = tf / (tf + doc_norms[docids[i]]);
+
+        scores[i] = rsj * tf_weight;
+      }
+    }
+  }
+
+  static class IndriScorer extends Scorer {
+    private final double smoothing;		// 1 - lambda
+    private final double mu_mle;		// mu * mle
+    private final double background;		// mle * lambda
+    private final double default_weight;	// (1 - lambda) * mle
+    private final double[] doc_norms;		// doc_len + mu
+    private final double[] default_factors;	// mu / (doc_len + mu)
+
+    IndriScorer (double mu, double lambda, double mle, double[] doc_norms,
+                 double[] default_factors) {
+      this.smoothing = 1.0 - lambda;
+      this.mu_mle = mu * mle;
+      this.background = mle * lambda;
+      this.default_weight = (1.0 - lambda) * mle;
+      this.doc_norms = doc_norms;
+      this.default_factors = default_factors;
+    }
+
+    double defaultScore (int docid) {
+      return default_weight * default_factors[docid] + background;
+    }
+
+    double score (int docid, double tf) {
+      return smoothing * (tf + mu_mle) / doc_norms[docid] + background;
+    }
+
+    void scoreBatch (int[] docids, int[] tfs, int n, double[] scores,
+                     boolean vector) {
+      if (vector) {
+        ScorerVector.indri (smoothing, mu_mle, background, doc_norms,
+                            docids, tfs, n, scores);
+        return;
+      }
+
+      double smoothing = this.smoothing;
+      double mu_mle = this.mu_mle;
+      double background = this.background;
+      double[] doc_norms = this.doc_norms;
+
+      for (int i = 0; i < n; i++) {
+        double tf = tfs[i];
+
+        scores[i] = smoothing * (tf + mu_mle) / doc_norms[docids[i]] + background;
+      }
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -52,108 +240,128 @@ public class QrySopScore extends QrySop {
    */
   public double getScore (RetrievalModel r) throws IOException {
 
-    // Get the type of retrieval model
-    if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.getScoreUnrankedBoolean(r);
-    } else if (r instanceof RetrievalModelRankedBoolean) {
-      return this.getScoreRankedBoolean(r);
-    } else if (r instanceof RetrievalModelIndri) {
-      return this.getScoreIndri(r);
-    } else if (r instanceof RetrievalModelBM25) {
-      return this.getScoreBM25(r);
-    } else {
+    if (this.scorer == null) {
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the SCORE operator.");
     }
-  }
-  
-  /**
-   *  getScore for the Unranked retrieval model.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
-   */
-  public double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
+
     if (! this.docIteratorHasMatchCache()) {
       return 0.0;
-    } else {
-      return 1.0;
     }
+
+    return this.scorer.score(this.getArg(0));
   }
 
   /**
-   *  getScore for the Ranked retrieval model.
+   *  Get the next batch of matching documents and their scores, from
+   *  a batch of the argument's docids and tfs.
    *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
+   *  @param docids Receives up to docids.length docids.
+   *  @param scores Receives the score of each document.
+   *  @return The number of documents, or 0 if there are no more matches.
    *  @throws IOException Error accessing the Lucene index
    */
-  public double getScoreRankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-      return this.getArg(0).docIteratorGetMatchPosting().tf;
+  public int getScoreBatch (RetrievalModel r, int[] docids, double[] scores)
+    throws IOException {
+
+    if (this.scorer == null) {		// getScore reports the model.
+      return super.getScoreBatch(r, docids, scores);
     }
+
+    if ((this.batch_tfs == null) || (this.batch_tfs.length != docids.length)) {
+      this.batch_tfs = new int[docids.length];
+    }
+
+    int n = this.getArg(0).docIteratorNextBatch(docids, this.batch_tfs);
+    this.scorer.scoreBatch(docids, this.batch_tfs, n, scores);
+    return n;
   }
 
   /**
-   *  getScore for the BM25 retrieval model.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  Get the scorer that initialize bound.
+   *  @return The scorer, or null if the retrieval model doesn't
+   *  support the SCORE operator.
    */
-  private double getScoreBM25 (RetrievalModel r) throws IOException {
-
-    if (this.docIteratorHasMatchCache()) {
+  Scorer getScorer () {
+    return this.scorer;
+  }
 
-      // Get input parameters
-      if (b == -1.0 || k1 == -1.0 || k3 == -1.0) {
-        b  = ((RetrievalModelBM25) r).b;
-        k1 = ((RetrievalModelBM25) r).k1;
-        k3 = ((RetrievalModelBM25) r).k3;
-      }
+  /**
+   *  Get an upper bound on the RankedBoolean score, the tf, of the
+   *  documents in each block of the inverted list.
+   *  @return The last docid and score bound of each block.
+   */
+  public BlockMaxIndex.Blocks getBlockUpperBoundsRankedBoolean () {
+    return this.getArg(0).getBlockMaxTf();
+  }
 
-      int doc_id = this.docIteratorGetMatch();
-      double doc_len = Idx.getFieldLength(field, doc_id);
-      double tf = this.getArg(0).docIteratorGetMatchPosting().tf;
+  /**
+   *  Get an upper bound on the BM25 score of any document.  The
+   *  term weight rsj * tf / (tf + k1 * norm) equals rsj * x / (x + k1)
+   *  with x = tf / norm, which increases with x, so the bound uses
+   *  an upper bound on x.  Rounding may put a score a few ulps above
+   *  the bound, so callers must allow some slack.
+   *  @param r The BM25 retrieval model.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the block maxima.
+   */
+  public double getUpperBoundBM25 (RetrievalModel r) throws IOException {
 
-      double rsj = 1.0 * (N - df + 0.5) / (df + 0.5);
-      if (rsj < 1.0) {
-        // Prevent minus value
-        rsj = 0.0;
-      } else {
-        rsj = Math.log(rsj);
-      }
-      double tf_weight = 1.0 * tf / (tf + k1 * (1.0 - b + b * doc_len / doc_len_avg));
-      double user_weight = 1.0;
+    double x = this.getMaxNormalizedTf();
+    double tf_weight = Double.isInfinite(x) ? 1.0 : x / (x + k1);
 
-      return rsj * tf_weight * user_weight;
-    }
-    return 0.0;
+    return rsj * tf_weight;
   }
 
   /**
-   *  getScore for the Indri retrieval model.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  Get an upper bound on the BM25 length-normalized term frequency,
+   *  x = tf / ((1-b) + b * length / avgLength), of the documents in
+   *  the inverted list.  It is the largest of the term's stored block
+   *  maxima, if Idx has them (see BlockMaxIndex).  Otherwise it uses
+   *  the largest tf in the list, which the list keeps (see
+   *  InvList.getBlockMaxTf), and the smallest field length, so the
+   *  inverted list isn't scanned.
+   *  @return The upper bound, or infinity if there is none.
+   *  @throws IOException Error accessing the block maxima.
    */
-  private double getScoreIndri (RetrievalModel r) throws IOException {
+  private double getMaxNormalizedTf () throws IOException {
+
+    QryIop arg = this.getArg(0);
 
-    if (this.docIteratorHasMatchCache()) {
+    if (arg instanceof QryIopTerm) {
+      BlockMaxIndex.Blocks stored =
+        Idx.getBlockMaxNormalizedTf(((QryIopTerm) arg).getTerm(), field, b);
 
-      // Get input parameters
-      if (mu == -1.0 || lambda == -1.0) {
-        mu = ((RetrievalModelIndri) r).mu;
-        lambda = ((RetrievalModelIndri) r).lambda;
+      if (stored != null) {
+        return stored.getMax();
       }
+    }
+
+    double max_tf = arg.getBlockMaxTf().getMax();
 
-      int doc_id = this.docIteratorGetMatch();
-      double doc_len = Idx.getFieldLength(field, doc_id);
-      double tf = this.getArg(0).docIteratorGetMatchPosting().tf;
+    return max_tf / ((1.0 - b) + b * min_doc_len / doc_len_avg);
+  }
+
+  /**
+   *  Get an upper bound on the BM25 score of the documents in each
+   *  block of the inverted list.  See getUpperBoundBM25.
+   *  @param r The BM25 retrieval model.
+   *  @return The last docid and score bound of each block.
+   *  @throws IOException Error accessing the block maxima.
+   */
+  public BlockMaxIndex.Blocks getBlockUpperBoundsBM25 (RetrievalModel r)
+    throws IOException {
+
+    BlockMaxIndex.Blocks blocks =
+      this.getArg(0).getBlockMaxNormalizedTf(doc_lengths, b, doc_len_avg);
+    double[] bounds = new double[blocks.max.length];
 
-      return 1.0 * (1.0 - lambda) * (tf + mu * mle) / (doc_len + mu) + mle * lambda;
+    for (int i = 0; i < bounds.length; i++) {
+      double x = blocks.max[i];
+      bounds[i] = rsj * (Double.isInfinite(x) ? 1.0 : x / (x + k1));
     }
-    return 0.0;
+
+    return new BlockMaxIndex.Blocks(blocks.lastDocid, bounds);
   }
 
   /**
@@ -163,16 +371,56 @@ public class QrySopScore extends QrySop {
    *  @throws IOException Error accessing the Lucene index
    */
   public double getDefaultScoreIndri (RetrievalModel r, int doc_id) throws IOException {
+    return this.scorer.defaultScore(doc_id);
+  }
 
-    // Get input parameters
-    if (mu == -1.0 || lambda == -1.0) {
-      mu = ((RetrievalModelIndri) r).mu;
-      lambda = ((RetrievalModelIndri) r).lambda;
-    }
+  /**
+   *  Get an upper bound on the Indri score of any document that
+   *  matches.  The score increases with (tf + mu * mle) / (length + mu),
+   *  and length &gt;= tf, so for tf &lt;= maxTf and length &gt;= the
+   *  smallest field length it is largest when tf = maxTf and length =
+   *  max (maxTf, smallest length).  maxTf is the largest tf in the
+   *  inverted list, which the list keeps (see InvList.getBlockMaxTf),
+   *  or the ctf if the list can't bound it, so the inverted list
+   *  isn't scanned.  Rounding may put a score a few ulps above the
+   *  bound, so callers must allow some slack.
+   *  @param r The Indri retrieval model.
+   *  @return The upper bound.
+   */
+  public double getUpperBoundIndri (RetrievalModel r) {
+
+    double max_tf = Math.min(this.getArg(0).getBlockMaxTf().getMax(), ctf);
+    double x = (max_tf + mu * mle) / (Math.max(max_tf, min_doc_len) + mu);
+
+    return (1.0 - lambda) * x + lambda * mle;
+  }
+
+  /**
+   *  Get an upper bound on the Indri score of any document that
+   *  doesn't match, from getDefaultScoreIndri.  It is largest for the
+   *  shortest document.  Rounding may put a score a few ulps above
+   *  the bound, so callers must allow some slack.
+   *  @param r The Indri retrieval model.
+   *  @return The upper bound.
+   */
+  public double getDefaultUpperBoundIndri (RetrievalModel r) {
 
-    double doc_len = Idx.getFieldLength(field, doc_id);
+    return 1.0 * (1.0 - lambda) * mle * mu / (min_doc_len + mu) + mle * lambda;
+  }
 
-    return 1.0 * (1.0 - lambda) * mle * mu / (doc_len + mu) + mle * lambda;
+  /**
+   *  Get the BM25 RSJ weight of a term.
+   *  @param N The number of documents.
+   *  @param df The term's document frequency.
+   *  @return The RSJ weight, which is never negative.
+   */
+  static double getRsj (double N, double df) {
+    double rsj = 1.0 * (N - df + 0.5) / (df + 0.5);
+    if (rsj < 1.0) {
+      // Prevent minus value
+      return 0.0;
+    }
+    return Math.log(rsj);
   }
 
   /**
@@ -192,6 +440,15 @@ public class QrySopScore extends QrySop {
     QryIop query = this.getArg(0);
     field = query.getField();
 
+    // Resolve the field once, so scoring reads lengths from an array
+    int fieldId = -1;
+
+    if (r instanceof RetrievalModelBM25 || r instanceof RetrievalModelIndri) {
+      fieldId = Idx.getFieldId(field);
+      doc_lengths = Idx.getFieldLengths(fieldId);
+      min_doc_len = Idx.getMinFieldLength(fieldId);
+    }
+
     ctf = query.getCtf();
     df = query.getDf();
     N = Idx.getNumDocs();
@@ -199,5 +456,26 @@ public class QrySopScore extends QrySop {
     mle = ctf / doc_len_all;
     doc_count = 1.0 + Idx.getDocCount(field);
     doc_len_avg = doc_len_all / doc_count;
+
+    rsj = getRsj(N, df);
+
+    // Bind the scorer of the retrieval model
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      scorer = new UnrankedBooleanScorer();
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      scorer = new RankedBooleanScorer();
+    } else if (r instanceof RetrievalModelBM25) {
+      b  = ((RetrievalModelBM25) r).b;
+      k1 = ((RetrievalModelBM25) r).k1;
+      k3 = ((RetrievalModelBM25) r).k3;
+      scorer = new BM25Scorer(rsj, Idx.getBM25Norms(fieldId, k1, b, doc_len_avg));
+    } else if (r instanceof RetrievalModelIndri) {
+      mu = ((RetrievalModelIndri) r).mu;
+      lambda = ((RetrievalModelIndri) r).lambda;
+      scorer = new IndriScorer(mu, lambda, mle, Idx.getIndriNorms(fieldId, mu),
+                               Idx.getIndriDefaultFactors(fieldId, mu));
+    } else {
+      scorer = null;
+    }
   }
 }
@@ -42,6 +42,49 @@ public class QrySopSum extends QrySop {
     return score;
   }
 
+  /**
+   *  Get the next batch of matching documents and their scores.  The
+   *  arguments' batches are merged in docid order, and each score is
+   *  summed in argument order, as getScore does.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docids Receives up to docids.length docids.
+   *  @param scores Receives the score of each document.
+   *  @return The number of documents, or 0 if there are no more matches.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public int getScoreBatch (RetrievalModel r, int[] docids, double[] scores)
+    throws IOException {
+
+    BatchCursor[] cursors = this.getBatchCursors();
+    int n = 0;
+
+    while (n < docids.length) {
+      int matchDoc = Integer.MAX_VALUE;
+
+      for (BatchCursor c : cursors) {
+        matchDoc = Math.min(matchDoc, c.docid(r));
+      }
+
+      if (matchDoc == Integer.MAX_VALUE) {
+        break;
+      }
+
+      double score = 0.0;
+      for (BatchCursor c : cursors) {
+        if (c.docid(r) == matchDoc) {
+          score += c.score();
+          c.next();
+        }
+      }
+
+      docids[n] = matchDoc;
+      scores[n] = score;
+      n++;
+    }
+
+    return n;
+  }
+
   /**
    *  Get a score for the document when nothing matched in Indri Model
    *  @param r The retrieval model that determines how scores are calculated.
@@ -15,7 +15,7 @@ public class QrySopWSum extends QrySop {
    *  @return True if the query matches, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
-    if (r instanceof RetrievalModelIndri) {
+    if (this.model == Model.INDRI) {
       return this.docIteratorHasMatchMin (r);
     }
     throw new IllegalArgumentException
@@ -30,8 +30,8 @@ public class QrySopWSum extends QrySop {
    */
   public double getScore (RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelIndri) {
-      return this.getScoreInddri(r);
+    if (this.model == Model.INDRI) {
+      return this.getScoreIndri(r);
     }
     throw new IllegalArgumentException
         (r.getClass().getName() + " WSum can only support Indri!");
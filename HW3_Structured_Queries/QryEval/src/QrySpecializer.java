@@ -0,0 +1,523 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  Specializes the interpreter for an initialized query:  the query
+ *  is translated into a tree of nodes whose classes are chosen for
+ *  the query's shape and retrieval model.  It is still an
+ *  interpreter, and each node calls its arguments through Node's
+ *  virtual methods, but the nodes don't make the tests and casts that
+ *  the general Qry classes make for each document.  The results are
+ *  the same as evaluating the Qry tree, which remains the interpreter
+ *  for queries that aren't specialized.
+ *  <p>
+ *  Each score operator becomes a node whose class is chosen for its
+ *  operator, retrieval model and, for two arguments, arity:  a #SUM,
+ *  an UnrankedBoolean, RankedBoolean or Indri #AND, or a Boolean #OR.
+ *  A node has its arguments in a final array or final fields, so no
+ *  ArrayList is walked and no casts or model tests are made for each
+ *  document.  The #SCORE leaves iterate over their inverted lists
+ *  directly and score with the model's scorer (see QrySopScore), with
+ *  its per-query constants.  Each node caches its current docid until
+ *  it is advanced, so a parent that asks its arguments for their
+ *  docids several times for a document doesn't recompute them, as
+ *  Qry.docIteratorHasMatch does.
+ *  </p><p>
+ *  Scores are computed with the same operations in the same order as
+ *  the QrySop classes, so they are bit-for-bit the same.  #WAND and
+ *  #WSUM, and models that an operator doesn't support, aren't
+ *  specialized.
+ *  </p>
+ */
+public class QrySpecializer {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The docid of a node that has no more matches.
+   */
+  private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A specialized query.
+   */
+  public static class Evaluator {
+
+    private final Node root;
+
+    Evaluator (Node root) {
+      this.root = root;
+    }
+
+    /**
+     *  Score every document that matches the query.
+     *  @param result A ScoreList that receives the results.
+     */
+    public void evaluate (ScoreList result) {
+
+      int docid;
+
+      while ((docid = root.docid ()) != NO_MORE_DOCS) {
+        result.add (docid, root.score (docid));
+        root.advancePast (docid);
+      }
+    }
+  }
+
+  /**
+   *  A specialized score operator.
+   */
+  abstract static class Node {
+
+    /**
+     *  The cached docid, or -1 if the node has moved since it was
+     *  computed.
+     */
+    private int docid = -1;
+
+    /**
+     *  Get the node's current match, as docIteratorHasMatch and
+     *  docIteratorGetMatch do.
+     *  @return The docid, or NO_MORE_DOCS if there are no more matches.
+     */
+    final int docid () {
+      if (this.docid < 0)
+        this.docid = this.match ();
+      return this.docid;
+    }
+
+    final void advancePast (int docid) {
+      this.docid = -1;
+      this.movePast (docid);
+    }
+
+    final void advanceTo (int docid) {
+      this.docid = -1;
+      this.moveTo (docid);
+    }
+
+    /**
+     *  Find the node's current match.
+     */
+    abstract int match ();
+
+    abstract void movePast (int docid);
+
+    abstract void moveTo (int docid);
+
+    /**
+     *  Get the score of the node's current match.
+     */
+    abstract double score (int docid);
+
+    /**
+     *  Get the Indri score of a document that the node doesn't match.
+     */
+    double defaultScore (int docid) {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  A #SCORE operator.
+   */
+  static final class ScoreLeaf extends Node {
+
+    private final QryIop arg;
+    private final QrySopScore.Scorer scorer;
+    private final RetrievalModel r;
+
+    ScoreLeaf (QryIop arg, QrySopScore.Scorer scorer, RetrievalModel r) {
+      this.arg = arg;
+      this.scorer = scorer;
+      this.r = r;
+    }
+
+    int match () {
+      return this.arg.docIteratorHasMatch (this.r) ?
+        this.arg.docIteratorGetMatch () : NO_MORE_DOCS;
+    }
+
+    void movePast (int docid) {
+      this.arg.docIteratorAdvancePast (docid);
+    }
+
+    void moveTo (int docid) {
+      this.arg.docIteratorAdvanceTo (docid);
+    }
+
+    double score (int docid) {
+      return this.scorer.score (this.arg);
+    }
+
+    double defaultScore (int docid) {
+      return this.scorer.defaultScore (docid);
+    }
+  }
+
+  /**
+   *  An operator that matches the documents that any argument
+   *  matches, as docIteratorHasMatchMin does.
+   */
+  abstract static class MinNode extends Node {
+
+    final Node[] args;
+
+    MinNode (Node[] args) {
+      this.args = args;
+    }
+
+    int match () {
+      int min = NO_MORE_DOCS;
+
+      for (Node arg : this.args)
+        min = Math.min (min, arg.docid ());
+
+      return min;
+    }
+
+    void movePast (int docid) {
+      for (Node arg : this.args)
+        arg.advancePast (docid);
+    }
+
+    void moveTo (int docid) {
+      for (Node arg : this.args)
+        arg.advanceTo (docid);
+    }
+  }
+
+  /**
+   *  A #SUM of two arguments.
+   */
+  static final class Sum2 extends Node {
+
+    private final Node a;
+    private final Node b;
+
+    Sum2 (Node a, Node b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    int match () {
+      return Math.min (this.a.docid (), this.b.docid ());
+    }
+
+    void movePast (int docid) {
+      this.a.advancePast (docid);
+      this.b.advancePast (docid);
+    }
+
+    void moveTo (int docid) {
+      this.a.advanceTo (docid);
+      this.b.advanceTo (docid);
+    }
+
+    double score (int docid) {
+      double score = 0.0;
+
+      if (this.a.docid () == docid)
+        score += this.a.score (docid);
+      if (this.b.docid () == docid)
+        score += this.b.score (docid);
+
+      return score;
+    }
+  }
+
+  /**
+   *  A #SUM.  See QrySopSum.
+   */
+  static final class Sum extends MinNode {
+
+    Sum (Node[] args) {
+      super (args);
+    }
+
+    double score (int docid) {
+      double score = 0.0;
+
+      for (Node arg : this.args) {
+        if (arg.docid () == docid)
+          score += arg.score (docid);
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  A Boolean #OR.  See QrySopOr.
+   */
+  static final class Or extends MinNode {
+
+    private final boolean ranked;
+
+    Or (Node[] args, boolean ranked) {
+      super (args);
+      this.ranked = ranked;
+    }
+
+    double score (int docid) {
+      if (! this.ranked)
+        return 1.0;
+
+      double max_score = -1.0;
+
+      for (Node arg : this.args) {
+        if (arg.docid () == docid)
+          max_score = Math.max (max_score, arg.score (docid));
+      }
+
+      return max_score;
+    }
+  }
+
+  /**
+   *  An Indri #AND of two arguments.
+   */
+  static final class IndriAnd2 extends Node {
+
+    private final Node a;
+    private final Node b;
+
+    /**
+     *  1.0 / 2, as QrySopAnd computes it.
+     */
+    private final double exponent;
+
+    IndriAnd2 (Node a, Node b) {
+      this.a = a;
+      this.b = b;
+      this.exponent = 1.0 / 2;
+    }
+
+    int match () {
+      return Math.min (this.a.docid (), this.b.docid ());
+    }
+
+    void movePast (int docid) {
+      this.a.advancePast (docid);
+      this.b.advancePast (docid);
+    }
+
+    void moveTo (int docid) {
+      this.a.advanceTo (docid);
+      this.b.advanceTo (docid);
+    }
+
+    double score (int docid) {
+      double score = 1.0;
+
+      if (this.a.docid () != docid) {
+        double temp = this.a.defaultScore (docid);
+
+        if (temp != 0.0)
+          score *= temp;
+      } else {
+        score *= this.a.score (docid);
+      }
+
+      if (this.b.docid () != docid) {
+        double temp = this.b.defaultScore (docid);
+
+        if (temp != 0.0)
+          score *= temp;
+      } else {
+        score *= this.b.score (docid);
+      }
+
+      return Math.pow (score, this.exponent);
+    }
+
+    double defaultScore (int docid) {
+      double score = 1.0;
+      double temp = this.a.defaultScore (docid);
+
+      if (temp != 0.0)
+        score *= temp;
+
+      temp = this.b.defaultScore (docid);
+
+      if (temp != 0.0)
+        score *= temp;
+
+      return Math.pow (score, this.exponent);
+    }
+  }
+
+  /**
+   *  An Indri #AND.  See QrySopAnd.
+   */
+  static final class IndriAnd extends MinNode {
+
+    private final double exponent;
+
+    IndriAnd (Node[] args) {
+      super (args);
+      this.exponent = 1.0 / args.length;
+    }
+
+    double score (int docid) {
+      double score = 1.0;
+
+      for (Node arg : this.args) {
+        if (arg.docid () != docid) {
+          double temp = arg.defaultScore (docid);
+
+          if (temp != 0.0)
+            score *= temp;
+        } else {
+          score *= arg.score (docid);
+        }
+      }
+
+      return Math.pow (score, this.exponent);
+    }
+
+    double defaultScore (int docid) {
+      double score = 1.0;
+
+      for (Node arg : this.args) {
+        double temp = arg.defaultScore (docid);
+
+        if (temp != 0.0)
+          score *= temp;
+      }
+
+      return Math.pow (score, this.exponent);
+    }
+  }
+
+  /**
+   *  A Boolean #AND, which matches the documents that every argument
+   *  matches, as docIteratorHasMatchAll does.  See QrySopAnd.
+   */
+  static final class BooleanAnd extends Node {
+
+    private final Node[] args;
+    private final boolean ranked;
+
+    BooleanAnd (Node[] args, boolean ranked) {
+      this.args = args;
+      this.ranked = ranked;
+    }
+
+    int match () {
+      Node q_0 = this.args[0];
+
+      while (true) {
+        int docid_0 = q_0.docid ();
+
+        if (docid_0 == NO_MORE_DOCS)
+          return NO_MORE_DOCS;
+
+        boolean matchFound = true;
+
+        for (int i = 1; i < this.args.length; i++) {
+          Node q_i = this.args[i];
+
+          q_i.advanceTo (docid_0);
+
+          int docid_i = q_i.docid ();
+
+          if (docid_i == NO_MORE_DOCS)
+            return NO_MORE_DOCS;
+
+          if (docid_0 != docid_i) {
+            q_0.advanceTo (docid_i);
+            matchFound = false;
+            break;
+          }
+        }
+
+        if (matchFound)
+          return docid_0;
+      }
+    }
+
+    void movePast (int docid) {
+      for (Node arg : this.args)
+        arg.advancePast (docid);
+    }
+
+    void moveTo (int docid) {
+      for (Node arg : this.args)
+        arg.advanceTo (docid);
+    }
+
+    double score (int docid) {
+      if (! this.ranked)
+        return 1.0;
+
+      double min_score = Double.MAX_VALUE;
+
+      for (Node arg : this.args)
+        min_score = Math.min (min_score, arg.score (docid));
+
+      return min_score;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Specialize the interpreter for an initialized query.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The evaluator, or null if the query can't be specialized.
+   */
+  public static Evaluator specialize (Qry q, RetrievalModel r) {
+    Node root = specializeNode (q, r);
+    return (root == null) ? null : new Evaluator (root);
+  }
+
+  /**
+   *  Specialize a score operator and its arguments.
+   *  @return The node, or null if the operator can't be specialized.
+   */
+  private static Node specializeNode (Qry q, RetrievalModel r) {
+
+    if (q instanceof QrySopScore) {
+      QrySopScore.Scorer scorer = ((QrySopScore) q).getScorer ();
+      return (scorer == null) ? null : new ScoreLeaf (q.getArg (0), scorer, r);
+    }
+
+    if (! (q instanceof QrySopSum || q instanceof QrySopOr ||
+           q instanceof QrySopAnd) || (q.args.size () == 0)) {
+      return null;
+    }
+
+    Node[] args = new Node[q.args.size ()];
+
+    for (int i = 0; i < args.length; i++) {
+      args[i] = specializeNode (q.args.get (i), r);
+
+      if (args[i] == null)
+        return null;
+    }
+
+    boolean isBoolean = (r instanceof RetrievalModelUnrankedBoolean) ||
+                        (r instanceof RetrievalModelRankedBoolean);
+    boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+
+    if (q instanceof QrySopSum) {
+      return (args.length == 2) ? new Sum2 (args[0], args[1]) : new Sum (args);
+    } else if (q instanceof QrySopOr) {
+      return isBoolean ? new Or (args, ranked) : null;
+    } else if (isBoolean) {
+      return new BooleanAnd (args, ranked);
+    } else if (r instanceof RetrievalModelIndri) {
+      return (args.length == 2) ?
+        new IndriAnd2 (args[0], args[1]) : new IndriAnd (args);
+    } else {
+      return null;
+    }
+  }
+}
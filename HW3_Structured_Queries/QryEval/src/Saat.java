@@ -0,0 +1,176 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ *  Score-at-a-time evaluation of a BM25 #SUM of #SCORE operators on
+ *  terms, from an impact-ordered index (see {@link ImpactIndex}), into
+ *  a bounded ScoreList.  Unlike the other evaluators, the results are
+ *  approximate.
+ *  <p>
+ *  The segments of all of the query's terms are processed in
+ *  descending order of impact, adding each posting's impact to a
+ *  score accumulator (see {@link Taat}).  The highest-impact postings,
+ *  which matter most to the ranking, are processed first, so
+ *  evaluation may stop after a budget of postings or time and still
+ *  give a good ranking.  With no budget, the scores are the quantized
+ *  BM25 scores.  Scores are reported in BM25 units, the sum of the
+ *  impacts times the index's scale.
+ *  </p><p>
+ *  The query doesn't need to be initialized; the inverted lists are
+ *  not read.
+ *  </p>
+ */
+public class Saat {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The number of postings processed between checks of the time
+   *  budget.
+   */
+  private static final int CHECK_INTERVAL = 1024;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Whether a query can be evaluated score at a time:  A BM25 #SUM
+   *  of #SCORE operators on terms, when Idx has an impact-ordered
+   *  index for the BM25 parameters.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated score at a time.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    ImpactIndex index = Idx.getImpactIndex ();
+
+    if (! (q instanceof QrySopSum) || ! (r instanceof RetrievalModelBM25) ||
+        (index == null) ||
+        (index.getK1 () != ((RetrievalModelBM25) r).k1) ||
+        (index.getB () != ((RetrievalModelBM25) r).b)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore) ||
+          ! (q_i.getArg (0) instanceof QryIopTerm))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query.
+   *  @param q The query.  See canEvaluate.
+   *  @param r The retrieval model.
+   *  @param result A ScoreList that receives the results.
+   *  @param postingsBudget The largest number of postings to process.
+   *  @param timeBudget The longest time to spend processing postings,
+   *  in nanoseconds.
+   *  @return The number of postings that were processed.
+   *  @throws IOException Error accessing the impacts.
+   */
+  public static long evaluate (Qry q, RetrievalModel r, ScoreList result,
+                               long postingsBudget, long timeBudget)
+    throws IOException {
+
+    long start = System.nanoTime ();
+    ImpactIndex index = Idx.getImpactIndex ();
+
+    //  List every segment of every term.
+
+    List<ImpactIndex.Segments> terms = new ArrayList<ImpactIndex.Segments> ();
+    int numSegments = 0;
+
+    for (Qry q_i : q.args) {
+      QryIopTerm term = (QryIopTerm) q_i.getArg (0);
+      ImpactIndex.Segments segments =
+        index.getSegments (term.getTerm (), term.getField ());
+
+      if (segments != null) {		// Unindexed fields don't match.
+        terms.add (segments);
+        numSegments += segments.impact.length;
+      }
+    }
+
+    //  Sort the segments by descending impact.  A key is the impact,
+    //  the term, and the segment.
+
+    long[] keys = new long[numSegments];
+    int n = 0;
+
+    for (int t = 0; t < terms.size (); t++) {
+      int[] impact = terms.get (t).impact;
+
+      for (int s = 0; s < impact.length; s++) {
+        keys[n ++] = ((long) (65535 - impact[s]) << 40) | ((long) t << 20) | s;
+      }
+    }
+
+    Arrays.sort (keys);
+
+    //  Process the segments until the budget runs out.
+
+    Taat.Accumulator acc = Taat.acquire (Idx.INDEXREADER.maxDoc ());
+    long postings = 0;
+
+    try {
+      double[] scores = acc.scores;
+      int[] stamps = acc.stamps;
+      int stamp = acc.stamp;
+      boolean done = false;
+
+      for (int k = 0; (k < numSegments) && ! done; k++) {
+        ImpactIndex.Segments segments =
+          terms.get ((int) ((keys[k] >>> 20) & 0xfffff));
+        int s = (int) (keys[k] & 0xfffff);
+        double impact = segments.impact[s];
+        IntBuffer docids = segments.docids;
+        int end = segments.postingStart[s + 1];
+
+        for (int p = segments.postingStart[s]; p < end; p++) {
+          if (postings >= postingsBudget) {
+            done = true;
+            break;
+          }
+
+          if ((postings % CHECK_INTERVAL == 0) && (postings > 0) &&
+              (System.nanoTime () - start >= timeBudget)) {
+            done = true;
+            break;
+          }
+
+          int docid = docids.get (p);
+
+          if (stamps[docid] != stamp) {
+            stamps[docid] = stamp;
+            scores[docid] = 0.0;
+            acc.docids[acc.size ++] = docid;
+          }
+
+          scores[docid] += impact;
+          postings ++;
+        }
+      }
+
+      //  Find the top k.
+
+      double scale = index.getScale ();
+
+      for (int i = 0; i < acc.size; i++) {
+        int docid = acc.docids[i];
+        result.add (docid, scores[docid] * scale);
+      }
+    } finally {
+      Taat.release (acc);
+    }
+
+    return postings;
+  }
+}
@@ -7,34 +7,78 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Entries are stored in parallel primitive arrays of docids and
+ *  scores, so adding a document allocates nothing.  Entries are
+ *  ordered by score and then by external document id.  External ids
+ *  are compared by their ordinals in the external id store, and an
+ *  id string is only made when getExternalDocid is called.
+ *  </p><p>
+ *  A score list may be bounded to the best k documents.  A bounded
+ *  list keeps a min-heap whose root is the worst document kept, so a
+ *  document that can't make the top k is rejected with one comparison.
+ *  Memory and sort time are O(k), not O(matches).  Before sort is
+ *  called, the entries of a bounded list are in heap order.
+ *  </p>
  */
 public class ScoreList {
 
-  //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  /**
+   *  Ranges this short are sorted by insertion sort.
+   */
+  private static final int INSERTION_SORT = 16;
 
-  public class ScoreListEntry {
-    public int docid;
-    public String externalId;
-    public double score;
+  /**
+   *  The relative slack that pruning evaluators (MaxScore, Wand,
+   *  BlockMaxWand) allow when they compare score bounds with
+   *  getThreshold.  It covers rounding in the bounds and in partial
+   *  sums that are added in a different order than the final score,
+   *  so pruning is conservative.
+   */
+  public static final double BOUND_SLACK = 1e-9;
 
-    private ScoreListEntry(int internalDocid, double score) {
-      this.docid = internalDocid;
-      this.score = score;
+  /**
+   *  The internal document ids.  Only the first size entries are valid.
+   */
+  private int[] docids;
 
-      try {
-	      this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	      ex.printStackTrace();
-      }
-    }
+  /**
+   *  The document scores.  Only the first size entries are valid.
+   */
+  private double[] scores;
+
+  private int size = 0;
+
+  /**
+   *  The maximum number of documents in a bounded list.
+   */
+  private int maxSize = Integer.MAX_VALUE;
+
+  /**
+   *  Whether the entries are in heap order, i.e., the list is bounded
+   *  and hasn't been sorted since the last add.
+   */
+  private boolean isHeap = false;
+
+  /**
+   *  Create a score list that keeps every document.
+   */
+  public ScoreList() {
+    this.docids = new int[16];
+    this.scores = new double[16];
   }
 
   /**
-   *  A list of document ids and scores. 
+   *  Create a score list that keeps only the best documents, by
+   *  score and then by external document id.
+   *  @param maxSize The number of documents to keep.
    */
-  private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  public ScoreList(int maxSize) {
+    this.maxSize = maxSize;
+    this.docids = new int[Math.min(maxSize, 1024)];
+    this.scores = new double[this.docids.length];
+    this.isHeap = true;
+  }
 
   /**
    *  Append a document score to a score list.
@@ -42,11 +86,58 @@ public class ScoreList {
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+
+    if (this.maxSize == Integer.MAX_VALUE) {
+      this.append(docid, score);
+      return;
+    }
+
+    if (! this.isHeap) {
+      this.heapify();
+    }
+
+    if (this.size < this.maxSize) {
+      this.append(docid, score);
+      this.siftUp(this.size - 1);
+    } else if (compare(score, docid, this.scores[0], this.docids[0]) < 0) {
+      this.docids[0] = docid;
+      this.scores[0] = score;
+      this.siftDown(0);
+    }
+  }
+
+  /**
+   *  Store an entry after the last entry, growing the arrays if necessary.
+   */
+  private void append(int docid, double score) {
+    if (this.size == this.docids.length) {
+      int capacity = (int) Math.min((long) this.size * 2, Integer.MAX_VALUE - 8);
+      this.docids = Arrays.copyOf(this.docids, capacity);
+      this.scores = Arrays.copyOf(this.scores, capacity);
+    }
+    this.docids[this.size] = docid;
+    this.scores[this.size] = score;
+    this.size ++;
+  }
+
+  /**
+   *  Get the internal document id of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid(int n) {
+    return this.docids[n];
   }
 
-  public ScoreListEntry getScoreListEntry(int n) {
-    return this.scores.get(n);
+  /**
+   *  Get the external document id of the n'th entry.  It is looked up
+   *  each time, so call this only for the entries that are written.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid(int n) throws IOException {
+    return Idx.getExternalDocid(this.docids[n]);
   }
 
   /**
@@ -55,7 +146,7 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-    return this.scores.get(n).score;
+    return this.scores[n];
   }
 
   /**
@@ -64,7 +155,22 @@ public class ScoreList {
    *  @param score The new score.
    */
   public void setDocidScore(int n, double score) {
-    this.scores.get(n).score = score;
+    this.scores[n] = score;
+    this.isHeap = false;
+  }
+
+  /**
+   *  Get the score that a document must reach to enter the list.  A
+   *  document with exactly this score enters only if its external id
+   *  sorts before that of the worst document kept.
+   *  @return The score of the worst document in a full bounded list,
+   *  otherwise negative infinity.
+   */
+  public double getThreshold() {
+    if (this.isHeap && (this.size == this.maxSize)) {
+      return this.scores[0];
+    }
+    return Double.NEGATIVE_INFINITY;
   }
 
   /**
@@ -72,23 +178,148 @@ public class ScoreList {
    *  @return The size of the posting list.
    */
   public int size() {
-    return this.scores.size();
+    return this.size;
   }
 
-  /*
-   *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
+  /**
+   *  Compare two documents.  Sort by score, then external docid.
+   *  External ids are compared by their ordinals, so the ids
+   *  themselves are only needed for documents that are not in the
+   *  external id store.
+   *  @return A negative number if the first document ranks higher,
+   *  a positive number if it ranks lower, or 0.
    */
-  public class ScoreListComparator implements Comparator<ScoreListEntry> {
+  private static int compare(double score1, int docid1,
+                             double score2, int docid2) {
+    if (score1 < score2) {
+      return 1;
+    } else if (score1 > score2) {
+      return -1;
+    }
+
+    int o1 = Idx.getExternalIdOrdinal(docid1);
+    int o2 = Idx.getExternalIdOrdinal(docid2);
 
-    @Override
-    public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-      if (s1.score < s2.score) {
-      	return 1;
-      } else if (s1.score == s2.score) {
-      	return s1.externalId.compareTo(s2.externalId);
+    if ((o1 >= 0) && (o2 >= 0)) {
+      return Integer.compare(o1, o2);
+    }
+
+    try {
+      return Idx.getExternalDocid(docid1).compareTo(Idx.getExternalDocid(docid2));
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   *  Compare the i'th and j'th entries.
+   */
+  private int compare(int i, int j) {
+    return compare(this.scores[i], this.docids[i], this.scores[j], this.docids[j]);
+  }
+
+  private void swap(int i, int j) {
+    int d = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = d;
+
+    double s = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = s;
+  }
+
+  //  The heap of a bounded list has the worst entry at the root.
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (this.compare(i, parent) <= 0)
+        break;
+
+      this.swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i) {
+    while (true) {
+      int worst = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+
+      if ((left < this.size) && (this.compare(left, worst) > 0))
+        worst = left;
+      if ((right < this.size) && (this.compare(right, worst) > 0))
+        worst = right;
+      if (worst == i)
+        break;
+
+      this.swap(i, worst);
+      i = worst;
+    }
+  }
+
+  private void heapify() {
+    for (int i = this.size / 2 - 1; i >= 0; i--) {
+      this.siftDown(i);
+    }
+    this.isHeap = true;
+  }
+
+  /**
+   *  Partition the entries in [lo, hi] around a median-of-three pivot.
+   *  @return The index of the pivot.  Entries before it rank higher,
+   *  entries after it rank lower.
+   */
+  private int partition(int lo, int hi) {
+
+    int mid = (lo + hi) >>> 1;
+
+    if (this.compare(mid, lo) < 0)
+      this.swap(mid, lo);
+    if (this.compare(hi, lo) < 0)
+      this.swap(hi, lo);
+    if (this.compare(mid, hi) < 0)
+      this.swap(mid, hi);
+
+    //  The pivot, the median of the three, is now at hi.
+
+    int store = lo;
+
+    for (int i = lo; i < hi; i++) {
+      if (this.compare(i, hi) < 0) {
+        this.swap(i, store);
+        store ++;
+      }
+    }
+
+    this.swap(store, hi);
+    return store;
+  }
+
+  /**
+   *  Sort the entries in [lo, hi].
+   */
+  private void sort(int lo, int hi) {
+
+    while (hi - lo >= INSERTION_SORT) {
+      int p = this.partition(lo, hi);
+
+      //  Recurse into the smaller side, so the stack stays shallow.
+
+      if (p - lo < hi - p) {
+        this.sort(lo, p - 1);
+        lo = p + 1;
       } else {
-        return -1;
+        this.sort(p + 1, hi);
+        hi = p - 1;
+      }
+    }
+
+    for (int i = lo + 1; i <= hi; i++) {
+      for (int j = i; (j > lo) && (this.compare(j, j - 1) < 0); j--) {
+        this.swap(j, j - 1);
       }
     }
   }
@@ -97,18 +328,54 @@ public class ScoreList {
    *  Sort the list by score and external document id.
    */
   public void sort() {
-    Collections.sort(this.scores, new ScoreListComparator());
+    this.sort(0, this.size - 1);
+    this.isHeap = false;
+  }
+
+  /**
+   *  Reduce the list to its best k entries, in sorted order.  The best
+   *  k are found by quickselect, so only they are sorted.
+   *  @param k The number of entries to keep.
+   */
+  public void sortTop(int k) {
+
+    if (k <= 0) {
+      this.size = 0;
+      return;
+    }
+
+    if (k < this.size) {
+      int target = k - 1;
+      int lo = 0;
+      int hi = this.size - 1;
+
+      while (lo < hi) {
+        int p = this.partition(lo, hi);
+
+        if (p == target) {
+          break;
+        } else if (target < p) {
+          hi = p - 1;
+        } else {
+          lo = p + 1;
+        }
+      }
+
+      this.size = k;
+    }
+
+    this.sort();
   }
-  
+
   /**
    * Reduce the score list to the first num results to save on RAM.
-   * 
+   *
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
-    List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-        Math.min(num, scores.size())));
-    this.scores.clear();
-    this.scores = truncated;
+    this.size = Math.min(num, this.size);
+    this.docids = Arrays.copyOf(this.docids, Math.max(this.size, 1));
+    this.scores = Arrays.copyOf(this.scores, Math.max(this.size, 1));
+    this.isHeap = false;
   }
 }
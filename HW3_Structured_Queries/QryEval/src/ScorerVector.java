@@ -0,0 +1,103 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import jdk.incubator.vector.*;
+
+/**
+ *  The Vector API kernels of the BM25 and Indri scorers in
+ *  QrySopScore.  A kernel converts a vector of tfs from ints to
+ *  doubles, gathers the documents' normalizers from the scorer's
+ *  table by docid, and computes the scorer's expression a lane at a
+ *  time.  The operations are the same as the scalar expression's, in
+ *  the same order, and none is fused, so the scores are bit-identical
+ *  to the scalar loop's.  The scalar loop scores the end of a batch,
+ *  which is shorter than a vector.  This class is loaded only if the
+ *  jdk.incubator.vector module is present (see Intersect.VECTOR).
+ */
+class ScorerVector {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  256-bit vectors, 4 doubles.  With 512-bit vectors, C2 in JDK 17
+   *  miscompiles the gather and the int to double conversion
+   *  together, and the JVM crashes.
+   */
+  private static final VectorSpecies<Double> SPECIES =
+    DoubleVector.SPECIES_256;
+
+  /**
+   *  The int species with as many lanes as SPECIES, for the tfs.
+   */
+  private static final VectorSpecies<Integer> INT_SPECIES =
+    VectorSpecies.of (int.class,
+                      VectorShape.forBitSize (SPECIES.vectorBitSize () / 2));
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Score a batch of documents with BM25:  rsj * (tf / (tf + norm)).
+   *  @param rsj The term's RSJ weight.
+   *  @param doc_norms k1 * (1 - b + b * doc_len / doc_len_avg),
+   *  indexed by docid.
+   *  @param docids The documents.
+   *  @param tfs The term's frequency in each document.
+   *  @param n The number of documents.
+   *  @param scores Receives the document scores.
+   */
+  static void bm25 (double rsj, double[] doc_norms,
+                    int[] docids, int[] tfs, int n, double[] scores) {
+
+    int bound = SPECIES.loopBound (n);
+    int i = 0;
+
+    for (; i < bound; i += SPECIES.length ()) {
+      DoubleVector tf = (DoubleVector) IntVector.fromArray (INT_SPECIES, tfs, i)
+        .convertShape (VectorOperators.I2D, SPECIES, 0);
+      DoubleVector norm = DoubleVector.fromArray (SPECIES, doc_norms, 0, docids, i);
+
+      tf.div (tf.add (norm)).mul (rsj).intoArray (scores, i);
+    }
+
+    for (; i < n; i++) {
+      double tf = tfs[i];
+
+      scores[i] = rsj * (tf / (tf + doc_norms[docids[i]]));
+    }
+  }
+
+  /**
+   *  Score a batch of documents with Indri:
+   *  smoothing * (tf + mu_mle) / norm + background.
+   *  @param smoothing 1 - lambda.
+   *  @param mu_mle mu * mle.
+   *  @param background mle * lambda.
+   *  @param doc_norms doc_len + mu, indexed by docid.
+   *  @param docids The documents.
+   *  @param tfs The term's frequency in each document.
+   *  @param n The number of documents.
+   *  @param scores Receives the document scores.
+   */
+  static void indri (double smoothing, double mu_mle, double background,
+                     double[] doc_norms,
+                     int[] docids, int[] tfs, int n, double[] scores) {
+
+    int bound = SPECIES.loopBound (n);
+    int i = 0;
+
+    for (; i < bound; i += SPECIES.length ()) {
+      DoubleVector tf = (DoubleVector) IntVector.fromArray (INT_SPECIES, tfs, i)
+        .convertShape (VectorOperators.I2D, SPECIES, 0);
+      DoubleVector norm = DoubleVector.fromArray (SPECIES, doc_norms, 0, docids, i);
+
+      tf.add (mu_mle).mul (smoothing).div (norm).add (background)
+        .intoArray (scores, i);
+    }
+
+    for (; i < n; i++) {
+      double tf = tfs[i];
+
+      scores[i] = smoothing * (tf + mu_mle) / doc_norms[docids[i]] + background;
+    }
+  }
+}
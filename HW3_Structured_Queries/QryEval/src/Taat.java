@@ -0,0 +1,233 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Term-at-a-time evaluation of a flat query into a bounded
+ *  ScoreList:  A BM25 #SUM, or an UnrankedBoolean or RankedBoolean
+ *  #OR, of #SCORE operators.  The results are the same as document-
+ *  at-a-time evaluation.
+ *  <p>
+ *  Each argument is iterated over on its own, from its first to its
+ *  last document, and its scores are combined into a dense score
+ *  accumulator indexed by docid:  #SUM adds them, in argument order,
+ *  and #OR keeps the largest.  The documents that were touched are
+ *  then scanned into the ScoreList.  There is no need to find the
+ *  smallest docid of the arguments for each document, and each pass
+ *  reads one inverted list and writes the accumulator in docid order,
+ *  which suits the cache when the lists are long and the query is
+ *  short.
+ *  </p><p>
+ *  Accumulators have maxDoc entries, so they are pooled and reused
+ *  across queries.  Each slot carries the stamp of the query that
+ *  last wrote it, so an accumulator is never cleared.
+ *  </p>
+ */
+public class Taat {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  In the "auto" evaluation mode, a query is evaluated term at a
+   *  time if its arguments have at least maxDoc / AUTO_DENSITY
+   *  postings in all.
+   */
+  private static final int AUTO_DENSITY = 4;
+
+  /**
+   *  Accumulators that are not in use.
+   */
+  private static final ArrayDeque<Accumulator> POOL =
+    new ArrayDeque<Accumulator> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A dense score accumulator.  {@link Saat} uses them too.
+   */
+  static class Accumulator {
+
+    /**
+     *  The score of each document, indexed by docid.  A score is
+     *  valid only if the document's stamp is the current stamp.
+     */
+    final double[] scores;
+    final int[] stamps;
+
+    /**
+     *  The documents that were touched by the current query.  Only
+     *  the first size entries are valid.
+     */
+    final int[] docids;
+    int size = 0;
+    int stamp = 0;
+
+    Accumulator (int maxDoc) {
+      this.scores = new double[maxDoc];
+      this.stamps = new int[maxDoc];
+      this.docids = new int[maxDoc];
+    }
+
+    /**
+     *  Forget the scores of the previous query.
+     */
+    void reset () {
+      this.size = 0;
+      this.stamp ++;
+
+      if (this.stamp == 0) {		// The stamp wrapped around.
+        Arrays.fill (this.stamps, 0);
+        this.stamp = 1;
+      }
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Whether a query can be evaluated term at a time.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated term at a time.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    boolean flatSum =
+      (q instanceof QrySopSum) && (r instanceof RetrievalModelBM25);
+    boolean flatOr =
+      (q instanceof QrySopOr) &&
+      ((r instanceof RetrievalModelUnrankedBoolean) ||
+       (r instanceof RetrievalModelRankedBoolean));
+
+    if (! flatSum && ! flatOr)
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Whether term-at-a-time evaluation is likely to be faster than
+   *  document-at-a-time evaluation for an initialized query, i.e.,
+   *  its inverted lists are long.
+   *  @param q The query.  See canEvaluate.
+   *  @return True if term-at-a-time evaluation is preferred.
+   */
+  public static boolean isPreferred (Qry q) {
+
+    long postings = 0;
+
+    for (Qry q_i : q.args) {
+      postings += ((QrySopScore) q_i).getArg (0).getDf ();
+    }
+
+    return postings * AUTO_DENSITY >= Idx.INDEXREADER.maxDoc ();
+  }
+
+  /**
+   *  Get an accumulator from the pool, or make one.
+   */
+  static Accumulator acquire (int maxDoc) {
+
+    Accumulator acc = null;
+
+    synchronized (POOL) {
+      while ((acc == null) && ! POOL.isEmpty ()) {
+        acc = POOL.pop ();
+
+        if (acc.scores.length != maxDoc)
+          acc = null;			// Made for another index.
+      }
+    }
+
+    if (acc == null) {
+      acc = new Accumulator (maxDoc);
+    }
+
+    acc.reset ();
+    return acc;
+  }
+
+  /**
+   *  Return an accumulator to the pool.
+   */
+  static void release (Accumulator acc) {
+    synchronized (POOL) {
+      POOL.push (acc);
+    }
+  }
+
+  /**
+   *  Evaluate an initialized query.
+   *  @param q The query.  See canEvaluate.
+   *  @param r The retrieval model.
+   *  @param result A ScoreList that receives the results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, ScoreList result)
+    throws IOException {
+
+    //  The initial scores are the ones that QrySopSum and QrySopOr
+    //  start from, so the results are bit-for-bit the same.
+
+    boolean sum = (q instanceof QrySopSum);
+    double initial = sum ? 0.0 : -1.0;
+    Accumulator acc = acquire (Idx.INDEXREADER.maxDoc ());
+
+    try {
+      double[] scores = acc.scores;
+      int[] stamps = acc.stamps;
+      int stamp = acc.stamp;
+      int[] docids = new int[QrySop.BATCH_SIZE];
+      int[] tfs = new int[QrySop.BATCH_SIZE];
+      double[] batch = new double[QrySop.BATCH_SIZE];
+
+      for (Qry q_i : q.args) {
+        QrySopScore arg = (QrySopScore) q_i;
+        QryIop list = arg.getArg (0);
+        QrySopScore.Scorer scorer = arg.getScorer ();
+        int n;
+
+        //  Copy the postings a batch at a time, and score the batch
+        //  with the scorer's kernel, as QrySopScore.getScoreBatch
+        //  does, so there are no calls per posting.
+
+        while ((n = list.docIteratorNextBatch (docids, tfs)) > 0) {
+          scorer.scoreBatch (docids, tfs, n, batch);
+
+          for (int i = 0; i < n; i++) {
+            int docid = docids[i];
+
+            if (stamps[docid] != stamp) {
+              stamps[docid] = stamp;
+              scores[docid] = initial;
+              acc.docids[acc.size ++] = docid;
+            }
+
+            if (sum) {
+              scores[docid] += batch[i];
+            } else {
+              scores[docid] = Math.max (scores[docid], batch[i]);
+            }
+          }
+        }
+      }
+
+      //  Find the top k.
+
+      for (int i = 0; i < acc.size; i++) {
+        int docid = acc.docids[i];
+        result.add (docid, scores[docid]);
+      }
+    } finally {
+      release (acc);
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  WAND (weighted AND) evaluation of a BM25 #SUM or an Indri #AND of
+ *  #SCORE operators into a bounded ScoreList.  The results are the
+ *  same as exhaustive evaluation.
+ *  <p>
+ *  The arguments are kept sorted by the docid that they point to.
+ *  The pivot is the first argument at which the sum of the upper
+ *  bounds of the arguments so far can reach the threshold, the score
+ *  of the worst document in the full ScoreList.  No document before
+ *  the pivot's docid can reach the threshold, so the arguments before
+ *  the pivot skip straight to it with docIteratorAdvanceTo.  When the
+ *  first argument is already at the pivot's docid, the document is
+ *  scored.
+ *  </p><p>
+ *  Unlike MaxScore, the pivot is chosen from the current docids, not
+ *  from a fixed split of the arguments, so it keeps skipping when the
+ *  query has many terms with similar bounds, e.g., long description
+ *  or feedback-expanded queries.  Scores are summed in argument order,
+ *  as QrySopSum does, and bound comparisons allow a small relative
+ *  slack for rounding, so pruning is conservative.
+ *  </p><p>
+ *  An Indri #AND score is the geometric mean of its arguments'
+ *  scores, and an argument that doesn't match a document still gives
+ *  it a default score.  In log space the score times n is a sum, and
+ *  it is at most base + the sum of the gains of the arguments that
+ *  match, where base is the sum of the logs of the arguments' bounds
+ *  on their default scores, and an argument's gain is how much the
+ *  log of its bound on a matching score exceeds the log of its
+ *  default bound.  So WAND runs on the gains, with the threshold
+ *  moved into log space.  Documents are scored by the #AND itself.
+ *  </p>
+ */
+public class Wand {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Whether a query can be evaluated by WAND:  The queries that
+   *  MaxScore supports, and an Indri #AND whose arguments are all
+   *  #SCORE operators.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated by WAND.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (MaxScore.canEvaluate (q, r))
+      return true;
+
+    if (! (q instanceof QrySopAnd) || ! (r instanceof RetrievalModelIndri))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query.
+   *  @param q The query.  See canEvaluate.
+   *  @param r The retrieval model.
+   *  @param result A bounded ScoreList that receives the results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, ScoreList result)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] args = new QrySopScore[n];
+    double[] bounds = new double[n];
+    int[] docids = new int[n];
+    int[] cursors = new int[n];
+    boolean indri = (r instanceof RetrievalModelIndri);
+    double base = 0.0;
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+
+      if (indri) {
+
+        //  A default score of 0 is skipped, which is a factor of 1.
+
+        double defaultBound = args[i].getDefaultUpperBoundIndri (r);
+        double logDefault = (defaultBound > 0.0) ? Math.log (defaultBound) : 0.0;
+
+        bounds[i] =
+          Math.max (0.0, Math.log (args[i].getUpperBoundIndri (r)) - logDefault);
+        base += logDefault;
+      } else {
+        bounds[i] = args[i].getUpperBoundBM25 (r);
+      }
+
+      docids[i] = currentDocid (args[i], r);
+      cursors[i] = i;
+    }
+
+    int live = sortCursors (cursors, docids, n);
+    double threshold = Double.NEGATIVE_INFINITY;
+
+    while (live > 0) {
+
+      //  Find the pivot.
+
+      double bound = 0.0;
+      int pivot = -1;
+
+      for (int p = 0; p < live; p++) {
+        bound += bounds[cursors[p]];
+
+        if (bound * (1.0 + ScoreList.BOUND_SLACK) >= threshold) {
+          pivot = p;
+          break;
+        }
+      }
+
+      if (pivot < 0)		// No document can reach the threshold.
+        break;
+
+      int pivotDocid = docids[cursors[pivot]];
+
+      if (docids[cursors[0]] == pivotDocid) {
+
+        //  Score the document.  The arguments that match it are the
+        //  ones that point to it.
+
+        double score = 0.0;
+
+        if (indri) {
+          q.docIteratorHasMatch (r);
+          score = ((QrySop) q).getScore (r);
+        } else {
+          for (int i = 0; i < n; i++) {
+            if (docids[i] == pivotDocid)
+              score += args[i].getScore (r);
+          }
+        }
+
+        result.add (pivotDocid, score);
+        threshold = indri ?
+          getIndriThreshold (result.getThreshold (), n, base) :
+          result.getThreshold ();
+
+        for (int p = 0; (p < live) && (docids[cursors[p]] == pivotDocid); p++) {
+          int i = cursors[p];
+          args[i].docIteratorAdvancePast (pivotDocid);
+          docids[i] = currentDocid (args[i], r);
+        }
+      } else {
+
+        //  Documents before the pivot's docid can't reach the
+        //  threshold, so skip them.
+
+        for (int p = 0; (p < pivot) && (docids[cursors[p]] < pivotDocid); p++) {
+          int i = cursors[p];
+          args[i].docIteratorAdvanceTo (pivotDocid);
+          docids[i] = currentDocid (args[i], r);
+        }
+      }
+
+      live = sortCursors (cursors, docids, live);
+    }
+  }
+
+  /**
+   *  Move an Indri #AND threshold into log space.
+   *  @param threshold The score that a document must reach.
+   *  @param n The number of arguments.
+   *  @param base The sum of the logs of the default score bounds.
+   *  @return The sum of gains that a document must reach.
+   */
+  private static double getIndriThreshold (double threshold, int n, double base) {
+
+    if (! (threshold > 0.0))
+      return Double.NEGATIVE_INFINITY;
+
+    double logThreshold = n * Math.log (threshold);
+
+    return (logThreshold - base) -
+      ScoreList.BOUND_SLACK *
+      (Math.abs (logThreshold) + Math.abs (base) + 1.0);
+  }
+
+  /**
+   *  Get the docid that an argument points to.
+   *  @return The docid, or Integer.MAX_VALUE if the argument has no
+   *  more documents.
+   */
+  static int currentDocid (Qry q, RetrievalModel r) {
+    return q.docIteratorHasMatch (r) ? q.docIteratorGetMatch () : Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Sort the first live cursors by docid.  Only a few cursors move
+   *  in each step, so insertion sort is used.
+   *  @return The number of cursors that still have documents.
+   */
+  static int sortCursors (int[] cursors, int[] docids, int live) {
+
+    for (int p = 1; p < live; p++) {
+      int c = cursors[p];
+      int q = p - 1;
+
+      while ((q >= 0) && (docids[cursors[q]] > docids[c])) {
+        cursors[q + 1] = cursors[q];
+        q --;
+      }
+
+      cursors[q + 1] = c;
+    }
+
+    while ((live > 0) && (docids[cursors[live - 1]] == Integer.MAX_VALUE))
+      live --;
+
+    return live;
+  }
+}